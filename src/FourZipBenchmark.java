@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+/**
+ * 4-Zip benchmark. This program times the two inner loops of the codec,
+ * checking whether a block is all one value while compressing, and
+ * filling a leaf block while uncompressing, both the way QTree does them
+ * (one pixel at a time) and with the Arrays.mismatch, Arrays.fill and
+ * System.arraycopy intrinsics the JIT turns into vector loads and stores.
+ * <p>
+ * Each image is read in, and the exact blocks compress checks and
+ * uncompress fills for it are recorded up front, so both versions do
+ * the same work on the same pixels. Both versions are warmed up first,
+ * then run several times, turn and turn about, and the median time of
+ * each is reported along with the speedup of the intrinsics over the
+ * scalar loops. Most blocks in a quad tree are only a few pixels wide,
+ * so the intrinsics have not come out ahead, and QTree keeps the scalar
+ * loops. With no image files given, the sample images from 256x256
+ * through 1024x1024 are used.
+ */
+public class FourZipBenchmark {
+
+    /** The sample images used when none are given. */
+    private static final String[] SAMPLES = {
+            "images/raw/smileyface256x256.txt",
+            "images/raw/cmu-mascot256x256.txt",
+            "images/raw/redsox512x512.txt",
+            "images/raw/large1024x1024.txt"
+    };
+
+    /** The number of untimed runs before the timed ones. */
+    private static final int WARMUP_RUNS = 50;
+
+    /** The default number of timed runs. */
+    private static final int RUNS = 51;
+
+    /**
+     * The main routine.
+     *
+     * @param args the raw image file names, optionally preceded by -runs
+     *             and the number of timed runs
+     */
+    public static void main( String[] args ) {
+        int runs = RUNS;
+        if ( args.length >= 2 && args[ 0 ].equals( "-runs" ) ) {
+            try {
+                runs = Integer.parseInt( args[ 1 ] );
+            }
+            catch( NumberFormatException e ) {
+                System.err.println( "Bad -runs value: " + args[ 1 ] );
+                return;
+            }
+            args = Arrays.copyOfRange( args, 2, args.length );
+        }
+        if ( runs < 1 || args.length > 0 && args[ 0 ].startsWith( "-" ) ) {
+            System.err.println( "Usage: java FourZipBenchmark [-runs n] [raw-file ...]" );
+            return;
+        }
+        if ( args.length == 0 ) {
+            args = SAMPLES;
+        }
+
+        System.out.printf( "%-28s %-6s %10s %12s %14s %8s%n",
+                "image", "loop", "blocks", "scalar (us)", "intrinsic (us)", "speedup" );
+        try {
+            for ( String file : args ) {
+                benchmark( file, runs );
+            }
+        }
+        catch( IOException | FourZipException e ) {
+            System.err.println( e.getMessage() );
+        }
+    }
+
+    /**
+     * Time both loops, both ways, on one image.
+     *
+     * @param file the name of the raw image file
+     * @param runs the number of timed runs
+     * @throws IOException if the image could not be read
+     * @throws FourZipException if the image is not a square power of 2
+     */
+    private static void benchmark( String file, int runs )
+            throws IOException, FourZipException {
+        QTree tree = QTree.imageFromFile( file );
+        int[][] image = tree.getRawImage();
+        String name = file.substring( file.lastIndexOf( '/' ) + 1 );
+        if ( tree.getWidth() != tree.getSideDim() || tree.getHeight() != tree.getSideDim() ) {
+            throw new FourZipException( name + " is not a square power of 2 image" );
+        }
+
+        // the blocks compress checks, and the leaf blocks among them
+        // that uncompress fills, each as row, column, size
+        List< int[] > checked = new ArrayList<>();
+        List< int[] > leaves = new ArrayList<>();
+        record( image, 0, 0, tree.getSideDim(), checked, leaves );
+
+        // checks each block one pixel at a time, or with the intrinsics
+        compare( name, "check", checked.size(), runs, () -> {
+            int uniform = 0;
+            for ( int[] block : checked ) {
+                uniform += scalarUniform( image, block[ 0 ], block[ 1 ], block[ 2 ] ) ? 1 : 0;
+            }
+            return uniform;
+        }, () -> {
+            int uniform = 0;
+            for ( int[] block : checked ) {
+                uniform += intrinsicUniform( image, block[ 0 ], block[ 1 ], block[ 2 ] ) ? 1 : 0;
+            }
+            return uniform;
+        } );
+
+        // fills each leaf block one pixel at a time, or with the intrinsics
+        int[][] scalarFilled = new int[ image.length ][ image[ 0 ].length ];
+        int[][] vectorFilled = new int[ image.length ][ image[ 0 ].length ];
+        compare( name, "fill", leaves.size(), runs, () -> {
+            for ( int[] leaf : leaves ) {
+                scalarFill( scalarFilled, leaf[ 0 ], leaf[ 1 ], leaf[ 2 ], image[ leaf[ 0 ] ][ leaf[ 1 ] ] );
+            }
+            return scalarFilled[ 0 ][ 0 ];
+        }, () -> {
+            for ( int[] leaf : leaves ) {
+                intrinsicFill( vectorFilled, leaf[ 0 ], leaf[ 1 ], leaf[ 2 ], image[ leaf[ 0 ] ][ leaf[ 1 ] ] );
+            }
+            return vectorFilled[ 0 ][ 0 ];
+        } );
+        if ( !Arrays.deepEquals( image, scalarFilled ) || !Arrays.deepEquals( image, vectorFilled ) ) {
+            throw new FourZipException( "Filled image does not match " + name );
+        }
+    }
+
+    /**
+     * Record the blocks the (lossless) compressor checks for a square
+     * region, recursing into the quadrants of any that aren't uniform.
+     *
+     * @param image the image
+     * @param row the first row of the region
+     * @param col the first column of the region
+     * @param size the size of the region
+     * @param checked where each block checked is added
+     * @param leaves where each leaf block is added
+     */
+    private static void record( int[][] image, int row, int col, int size,
+                                List< int[] > checked, List< int[] > leaves ) {
+        int[] block = { row, col, size };
+        if ( size > 1 ) {
+            checked.add( block );
+        }
+        if ( size == 1 || scalarUniform( image, row, col, size ) ) {
+            leaves.add( block );
+            return;
+        }
+        for ( Quadrant quadrant : Quadrant.values() ) {
+            record( image, row + quadrant.rowDelta( size / 2 ),
+                    col + quadrant.colDelta( size / 2 ), size / 2, checked, leaves );
+        }
+    }
+
+    /**
+     * The block check QTree does, comparing one pixel at a time.
+     *
+     * @param image the image
+     * @param row the first row of the block
+     * @param col the first column of the block
+     * @param size the size of the block
+     * @return whether every pixel in the block is the same
+     */
+    private static boolean scalarUniform( int[][] image, int row, int col, int size ) {
+        int ref = image[ row ][ col ];
+        for ( int r = row; r < row + size; ++r ) {
+            for ( int c = col; c < col + size; ++c ) {
+                if ( image[ r ][ c ] != ref ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The leaf fill QTree does, setting one pixel at a time.
+     *
+     * @param image the image
+     * @param row the first row of the block
+     * @param col the first column of the block
+     * @param size the size of the block
+     * @param value the value to fill the block with
+     */
+    private static void scalarFill( int[][] image, int row, int col, int size, int value ) {
+        for ( int r = row; r < row + size; ++r ) {
+            for ( int c = col; c < col + size; ++c ) {
+                image[ r ][ c ] = value;
+            }
+        }
+    }
+
+    /**
+     * The block check with intrinsics. The differences from the first
+     * pixel are or-ed together over the first row, and every other row
+     * is compared to the first with Arrays.mismatch.
+     *
+     * @param image the image
+     * @param row the first row of the block
+     * @param col the first column of the block
+     * @param size the size of the block
+     * @return whether every pixel in the block is the same
+     */
+    private static boolean intrinsicUniform( int[][] image, int row, int col, int size ) {
+        int[] first = image[ row ];
+        int ref = first[ col ];
+        int diff = 0;
+        for ( int c = col; c < col + size; ++c ) {
+            diff |= first[ c ] ^ ref;
+        }
+        if ( diff != 0 ) {
+            return false;
+        }
+        for ( int r = row + 1; r < row + size; ++r ) {
+            if ( Arrays.mismatch( image[ r ], col, col + size, first, col, col + size ) != -1 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The leaf fill with intrinsics. The first row of the block is filled
+     * with Arrays.fill, then copied down the rest with System.arraycopy.
+     *
+     * @param image the image
+     * @param row the first row of the block
+     * @param col the first column of the block
+     * @param size the size of the block
+     * @param value the value to fill the block with
+     */
+    private static void intrinsicFill( int[][] image, int row, int col, int size, int value ) {
+        int[] first = image[ row ];
+        Arrays.fill( first, col, col + size, value );
+        for ( int r = row + 1; r < row + size; ++r ) {
+            System.arraycopy( first, col, image[ r ], col, size );
+        }
+    }
+
+    /** Collects the values returned by every run. */
+    private static int sink;
+
+    /**
+     * Time the scalar and intrinsic versions of a loop, and display one line of
+     * results. The runs of the two versions are interleaved, so that
+     * anything else going on in the machine slows them down alike.
+     *
+     * @param name the image's name
+     * @param loop which loop is timed
+     * @param blocks the number of blocks it works on
+     * @param runs the number of timed runs
+     * @param scalar the scalar version, returning some value depending on
+     *               the work done so it can't be optimized away
+     * @param vector the intrinsic version, likewise
+     */
+    private static void compare( String name, String loop, int blocks, int runs,
+                                 IntSupplier scalar, IntSupplier vector ) {
+        for ( int i = 0; i < WARMUP_RUNS; ++i ) {
+            sink += scalar.getAsInt() + vector.getAsInt();
+        }
+        long[] scalarTimes = new long[ runs ];
+        long[] vectorTimes = new long[ runs ];
+        for ( int i = 0; i < runs; ++i ) {
+            long start = System.nanoTime();
+            sink += scalar.getAsInt();
+            long middle = System.nanoTime();
+            sink += vector.getAsInt();
+            vectorTimes[ i ] = System.nanoTime() - middle;
+            scalarTimes[ i ] = middle - start;
+        }
+        Arrays.sort( scalarTimes );
+        Arrays.sort( vectorTimes );
+        long scalarMedian = scalarTimes[ runs / 2 ];
+        long vectorMedian = vectorTimes[ runs / 2 ];
+        System.out.printf( "%-28s %-6s %10d %12.1f %14.1f %7.2fx%n", name, loop, blocks,
+                scalarMedian / 1000.0, vectorMedian / 1000.0, (double)scalarMedian / vectorMedian );
+    }
+}
@@ -1,57 +1,259 @@
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
 
 /**
  * 4-Zip compressor.  This program takes a raw image file of
  * grayscale values (0-255) and compresses them into the 4-Zip format.
- * It is expected this raw image file is perfectly square and has side
- * dimensions that are powers of 2, e.g.
- * 1x1, 2x2, 4x4, 16x16, 256x256, 512x512, etc.
+ * The raw image may be ASCII text with one value per line, a binary
+ * PGM (P5) image, or headerless 8-bit pixels; the format is detected
+ * automatically, with or without -tile. Text and headerless images are
+ * expected to be perfectly square, unless their width and height are
+ * given with the -size option, e.g. -size 1920x1080 (which must be
+ * given even though 1920x1080 pixels would also make a 1440x1440
+ * square); a PGM image may be any width and height. Sides need not be
+ * powers of 2: the tree covers the next power of 2 up, and the part of
+ * it outside the image is never stored.
+ * <p>
+ * Images too big to fit in memory can be compressed a tile at a time
+ * by giving the side dimension of a tile (also a power of 2) with
+ * the -tile option. Noisy images can be compressed lossily by giving
+ * the largest allowed difference from each original pixel with the
+ * -lossy option. A sequence of frames can be compressed, each frame
+ * against the one before it, by giving the -sequence option followed
+ * by an input file and output file for each frame in order. The tree
+ * is only displayed in preorder when the -print option is given.
  *
  * @author Sean Strout, James Heliotis
  */
 public class FourZipCompress {
 
+    /** The usage message. */
+    private static final String USAGE =
+            "Usage: java FourZipCompress [-print] [-size WxH] [-tile dim] [-lossy tolerance] input-file output-file\n" +
+            "       java FourZipCompress [-print] [-size WxH] -sequence input-file output-file " +
+            "[input-file output-file ...]";
+
     /**
      * The main routine.
      *
-     * @param args two strings: input file name, output file name
+     * @param args two strings: input file name, output file name,
+     *             optionally preceded by -tile and a tile dimension,
+     *             and/or -lossy and a tolerance; or -sequence followed
+     *             by input and output file names for each frame; and
+     *             -print to display the tree, and -size and the width
+     *             and height (as WxH) of a text or headerless image
      */
     public static void main( String[] args ) {
-        if ( args.length != 2 ) {
-            System.err.println(
-                    "Usage: java FourZipCompress input-file output-file" );
+        int tileDim = 0;
+        int tolerance = 0;
+        int width = 0;
+        int height = 0;
+        boolean sequence = false;
+        boolean print = false;
+        int arg = 0;
+        while ( !sequence && args.length - arg > 2 ) {
+            if ( args[ arg ].equals( "-print" ) ) {
+                print = true;
+                ++arg;
+                continue;
+            }
+            if ( args[ arg ].equals( "-sequence" ) ) {
+                sequence = true;
+                ++arg;
+                continue;
+            }
+            try {
+                switch ( args[ arg ] ) {
+                    case "-tile":
+                        tileDim = Integer.parseInt( args[ arg + 1 ] );
+                        break;
+                    case "-lossy":
+                        tolerance = Integer.parseInt( args[ arg + 1 ] );
+                        break;
+                    case "-size":
+                        String[] size = args[ arg + 1 ].split( "x" );
+                        if ( size.length != 2 ) {
+                            throw new NumberFormatException();
+                        }
+                        width = Integer.parseInt( size[ 0 ] );
+                        height = Integer.parseInt( size[ 1 ] );
+                        if ( width < 1 || height < 1 ) {
+                            throw new NumberFormatException();
+                        }
+                        break;
+                    default:
+                        System.err.println( USAGE );
+                        return;
+                }
+            }
+            catch( NumberFormatException e ) {
+                System.err.println( "Bad " + args[ arg ] + " value: " + args[ arg + 1 ] );
+                return;
+            }
+            arg += 2;
+        }
+        if ( sequence ? ( args.length - arg ) % 2 != 0 || args.length == arg
+                      : args.length - arg != 2 ) {
+            System.err.println( USAGE );
+            return;
+        }
+        if ( ( tileDim > 0 ? 1 : 0 ) + ( tolerance > 0 ? 1 : 0 ) + ( sequence ? 1 : 0 ) > 1 ) {
+            System.err.println( "-tile, -lossy and -sequence cannot be used together" );
+            return;
+        }
+        args = Arrays.copyOfRange( args, arg, args.length );
+
+        if ( sequence ) {
+            compressSequence( args, width, height, print );
             return;
         }
 
+        QTree tree = null;
         try {
             long start = System.nanoTime();
-            // initialize the matrix
-            QTree tree = QTree.rawFromFile( args[ 0 ] );
+            if ( tileDim > 0 ) {
+                // compress the image a tile at a time, in parallel
+                tree = width > 0
+                        ? QTree.tiledFromFile( args[ 0 ], width, height, tileDim,
+                                Runtime.getRuntime().availableProcessors() )
+                        : QTree.tiledFromFile( args[ 0 ], tileDim,
+                                Runtime.getRuntime().availableProcessors() );
+            }
+            else {
+                // initialize the matrix
+                tree = loadImage( args[ 0 ], width, height );
 
-            // Create the tree.
-            tree.compress();
+                // Create the tree.
+                tree.compress( tolerance );
+            }
 
             // display the tree in preorder
-            System.out.println( tree );
+            if ( print ) {
+                printTree( tree );
+            }
 
             // write the compressed tree out to output-file
             tree.writeCompressed( args[ 1 ] );
 
             // display statistics regarding the compression efficiency
-            System.out.println( "Raw image size: " + tree.getRawSize() );
-            System.out.println(
-                    "Compressed image size: " + tree.getCompressedSize() );
-            System.out.println(
-                "Size reduction: " +
-                ( 100.0 *
-                  ( 1 - (double)tree.getCompressedSize() / tree.getRawSize() )
-                )
-                + '%'
-            );
-            System.out.println("Took " + ((System.nanoTime()-start)/1000000) + "ms.");
+            report( tree, start );
         }
         catch( IOException | FourZipException e ) {
             System.err.println( e.getMessage() );
         }
+        finally {
+            // a tiled tree's temporary files are done with, whether it was written out or not
+            if ( tree != null ) {
+                try {
+                    tree.deleteTiles();
+                }
+                catch( IOException e ) {
+                    System.err.println( "Could not delete the temporary tile files: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress a sequence of frames, each one against the frame before it.
+     *
+     * @param args pairs of strings, the input file name and output file
+     *             name of each frame in order
+     * @param width the width of each frame, or 0 if it is worked out
+     *              from the file
+     * @param height the height of each frame, or 0 if it is worked out
+     *               from the file
+     * @param print whether to display each frame's tree
+     */
+    private static void compressSequence( String[] args, int width, int height,
+                                          boolean print ) {
+        try {
+            QTree previous = null;
+            for ( int frame = 0; frame < args.length; frame += 2 ) {
+                long start = System.nanoTime();
+                // initialize the matrix
+                QTree tree = loadImage( args[ frame ], width, height );
+
+                // Create the tree, sharing whatever hasn't changed.
+                if ( previous == null ) {
+                    tree.compress();
+                }
+                else {
+                    tree.compress( previous );
+                }
+
+                // display the tree in preorder
+                if ( print ) {
+                    printTree( tree );
+                }
+
+                // write the compressed frame out to its output-file
+                tree.writeCompressed( args[ frame + 1 ] );
+
+                // display statistics regarding the compression efficiency
+                System.out.println( "Frame " + ( frame / 2 ) + ": " + args[ frame ] );
+                report( tree, start );
+                previous = tree;
+            }
+        }
+        catch( IOException | FourZipException e ) {
+            System.err.println( e.getMessage() );
+        }
+    }
+
+    /**
+     * Load an image in whatever format it is in.
+     *
+     * @param file the name of the image file
+     * @param width the width of the image, or 0 if it is worked out from
+     *              the file
+     * @param height the height of the image, or 0 if it is worked out from
+     *               the file
+     * @return the tree holding the image
+     * @throws IOException if the image could not be read
+     */
+    private static QTree loadImage( String file, int width, int height )
+            throws IOException {
+        return width > 0 ? QTree.imageFromFile( file, width, height )
+                         : QTree.imageFromFile( file );
+    }
+
+    /**
+     * Display the tree in preorder. It is streamed out through a buffer
+     * rather than built up as one big string.
+     *
+     * @param tree the tree to display
+     * @throws IOException if the tree could not be written out
+     */
+    private static void printTree( QTree tree ) throws IOException {
+        Writer out = new BufferedWriter( new OutputStreamWriter( System.out ) );
+        tree.appendTree( out );
+        out.write( System.lineSeparator() );
+        out.flush();
+    }
+
+    /**
+     * Display statistics regarding the compression efficiency.
+     *
+     * @param tree the tree that has been compressed and written out
+     * @param start when the compression started, in nanoseconds
+     * @throws FourZipException if the tree has not been compressed
+     */
+    private static void report( QTree tree, long start )
+            throws FourZipException {
+        System.out.println( "Raw image size: " + tree.getRawSize() );
+        System.out.println(
+                "Compressed image size: " + tree.getCompressedSize() );
+        System.out.println(
+            "Size reduction: " +
+            ( 100.0 *
+              ( 1 - (double)tree.getCompressedSize() / tree.getRawSize() )
+            )
+            + '%'
+        );
+        System.out.println("Took " + ((System.nanoTime()-start)/1000000) + "ms.");
     }
 }
@@ -7,14 +7,17 @@ import java.util.Map;
  * <p>
  * A node contains a value which is either a grayscale color (0-255) for a
  * region, or QTree.QUAD_SPLIT meaning the region this node represents does
- * not hold a single color and thus has split itself into 4 sub-regions.
+ * not hold a single color and thus has split itself into 4 sub-regions,
+ * or QTree.RAW_BLOCK meaning the region is stored as its raw pixels
+ * because splitting it would take up more room.
  *
  * @author James Heliotis
  */
 public class FourZipNode {
 
     /**
-     * The node's value: -1 if there are children, grayscale number o/w
+     * The node's value: -1 if there are children, -3 if raw pixels,
+     * grayscale number o/w
      */
     private final int value;
 
@@ -23,6 +26,16 @@ public class FourZipNode {
      */
     private final Map< Quadrant, FourZipNode> children;
 
+    /**
+     * If a raw block, the region's pixels in row-major order
+     */
+    private final int[] pixels;
+
+    /**
+     * The number of values it takes to write out this node's whole subtree
+     */
+    private final long encodedSize;
+
     /**
      * Construct a leaf node with no children.
      *
@@ -31,6 +44,20 @@ public class FourZipNode {
     public FourZipNode(int value ) {
         this.value = value;
         this.children = null;
+        this.pixels = null;
+        this.encodedSize = 1;
+    }
+
+    /**
+     * Construct a raw block node holding its region's pixels.
+     *
+     * @param pixels the region's grayscale values, row by row
+     */
+    public FourZipNode(int[] pixels ) {
+        this.value = QTree.RAW_BLOCK;
+        this.children = null;
+        this.pixels = pixels;
+        this.encodedSize = 1 + pixels.length;
     }
 
     /**
@@ -44,6 +71,8 @@ public class FourZipNode {
      * <dt>ll(#2)</dt><dd>the lower left sub-node</dd>
      * <dt>lr(#3)</dt><dd>the lower right sub-node</dd>
      *</dl>
+     * A child is null if its quadrant lies entirely outside the image.
+     *
      * @param children the array, or sequence of,
      *                 already-initialized child nodes
      */
@@ -54,21 +83,44 @@ public class FourZipNode {
         this.children.put( Quadrant.UR, children[ 1 ] );
         this.children.put( Quadrant.LL, children[ 2 ] );
         this.children.put( Quadrant.LR, children[ 3 ] );
+        this.pixels = null;
+        long size = 1;
+        for ( FourZipNode child: this.children.values() ) {
+            if ( child != null ) {
+                size += child.encodedSize;
+            }
+        }
+        this.encodedSize = size;
     }
 
     /**
      * Get the node's value. It will be {@link QTree#QUAD_SPLIT} if the
-     * node has children.
+     * node has children, or {@link QTree#RAW_BLOCK} if it holds pixels.
      *
      * @return node's value
      */
     public int getValue() { return this.value; }
 
+    /**
+     * Get the pixels of a raw block node.
+     *
+     * @return the region's grayscale values, row by row
+     */
+    public int[] getPixels() { return this.pixels; }
+
+    /**
+     * Get the number of values it takes to write out this node's
+     * whole subtree: one for this node, plus its children's or pixels.
+     *
+     * @return the encoded size of the subtree
+     */
+    public long getEncodedSize() { return this.encodedSize; }
+
     /**
      * Get one of the child nodes.
      *
      * @param quadrant which quadrant to fetch
-     * @return upper left sub-node
+     * @return the sub-node, or null if the quadrant is outside the image
      * @throws NullPointerException if this node is a leaf
      */
     public FourZipNode getChild(Quadrant quadrant ) {
@@ -1,8 +1,17 @@
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
 
 /**
  * 4-Zip uncompressor. This program takes a 4-Zip-compressed file,
  * uncompresses it, and then displays the image using the provided GrayPicViewer.
+ * Given several files, it uncompresses them as a sequence of frames, each one
+ * against the frame before it, and displays the last frame. The tree is
+ * only printed in preorder when the -print option is given. With the -save
+ * option the image is written to a file instead of displayed: as a binary
+ * PGM image if the file name ends in ".pgm", otherwise as raw bytes.
  *
  * @author Sean Strout, James Heliotis
  */
@@ -11,11 +20,31 @@ public class FourZipUncompress {
     /**
      * The main routine.
      *
-     * @param args an array with a single string holding the file name
+     * @param args an array holding the file name of each frame in order,
+     *             optionally preceded by -print and/or -save and an
+     *             output file name
      */
     public static void main( String[] args ) {
-        if ( args.length != 1 ) {
-            System.err.println( "Usage: FourZipUncompress filename" );
+        boolean print = false;
+        String saveFile = null;
+        int arg = 0;
+        while ( arg < args.length && args[ arg ].startsWith( "-" ) ) {
+            if ( args[ arg ].equals( "-print" ) ) {
+                print = true;
+                ++arg;
+            }
+            else if ( args[ arg ].equals( "-save" ) && arg + 1 < args.length ) {
+                saveFile = args[ arg + 1 ];
+                arg += 2;
+            }
+            else {
+                break;
+            }
+        }
+        args = Arrays.copyOfRange( args, arg, args.length );
+        if ( args.length < 1 ) {
+            System.err.println(
+                    "Usage: FourZipUncompress [-print] [-save output-file] filename [filename ...]" );
             return;
         }
 
@@ -26,15 +55,38 @@ public class FourZipUncompress {
             // uncompress the tree
             tree.uncompress();
 
+            // each later frame is uncompressed against the one before it
+            for ( int frame = 1; frame < args.length; ++frame ) {
+                tree = QTree.compressedFromFile( args[ frame ], tree );
+                tree.uncompress();
+            }
+
             // print the tree in preorder
-            System.out.println( tree );
+            if ( print ) {
+                Writer out = new BufferedWriter( new OutputStreamWriter( System.out ) );
+                tree.appendTree( out );
+                out.write( System.lineSeparator() );
+                out.flush();
+            }
+
+            // write the image out instead of displaying it
+            if ( saveFile != null ) {
+                if ( saveFile.endsWith( ".pgm" ) ) {
+                    tree.writePgm( saveFile );
+                }
+                else {
+                    tree.writeBytes( saveFile );
+                }
+                return;
+            }
 
             // create a separate viewer and pass it the raw image data
             GrayPicViewer view =
-                    new GrayPicViewer( tree.getRawImage(), tree.getSideDim() );
+                    new GrayPicViewer( tree.getRawImage(), tree.getWidth(),
+                                       tree.getHeight() );
 
             // finally display the image
-            view.display( args[ 0 ] );
+            view.display( args[ args.length - 1 ] );
         }
         catch( IOException | FourZipException e ) {
             System.err.println( e.getMessage() );
@@ -19,9 +19,14 @@ public class GrayPicViewer extends JPanel {
     private final int image[][];
 
     /**
-     * the square dimension of the image
+     * the width of the image
      */
-    private final int dim;
+    private final int width;
+
+    /**
+     * the height of the image
+     */
+    private final int height;
 
     /**
      * Construct the viewer
@@ -30,8 +35,20 @@ public class GrayPicViewer extends JPanel {
      * @param dim   the square dimension of image
      */
     public GrayPicViewer( int image[][], int dim ) {
+        this( image, dim, dim );
+    }
+
+    /**
+     * Construct the viewer for an image that may not be square
+     *
+     * @param image  the raw image
+     * @param width  the width of image
+     * @param height the height of image
+     */
+    public GrayPicViewer( int image[][], int width, int height ) {
         this.image = image;
-        this.dim = dim;
+        this.width = width;
+        this.height = height;
     }
 
     /**
@@ -41,7 +58,7 @@ public class GrayPicViewer extends JPanel {
      * @param title the title of the window
      */
     public void display( String title ) {
-        setPreferredSize( new Dimension( this.dim, this.dim ) );
+        setPreferredSize( new Dimension( this.width, this.height ) );
         JFrame f = new JFrame();
         f.setTitle( title );
         f.setDefaultCloseOperation( WindowConstants.DISPOSE_ON_CLOSE );
@@ -57,8 +74,8 @@ public class GrayPicViewer extends JPanel {
      * @param g the graphics context we are drawing into
      */
     public void paintComponent( Graphics g ) {
-        for ( int row = 0; row < this.dim; row++ ) {
-            for ( int col = 0; col < this.dim; col++ ) {
+        for ( int row = 0; row < this.height; row++ ) {
+            for ( int col = 0; col < this.width; col++ ) {
                 int c = image[ row ][ col ];
                 Color color = new Color( c, c, c );
                 g.setColor( color );
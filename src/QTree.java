@@ -1,24 +1,69 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class QTree
 {
     /** The value of a node that indicates it is split into 4 sub-regions. */
     public static int QUAD_SPLIT = -1;
+    /** The value written in place of a split or raw subtree that is the same as in the previous frame of a sequence. */
+    public static int SAME_AS_PREVIOUS = -2;
+    /** The value of a node that holds its region's raw pixels, which follow it in row-major order. */
+    public static int RAW_BLOCK = -3;
+    /** The side dimension of the biggest region that may be stored as a raw block. */
+    private static final int MAX_RAW_BLOCK_DIM = 16;
+    /** The size of the buffer used when writing a compressed image. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    /** The most bytes of a binary image mapped into memory at once. */
+    private static final int MAP_CHUNK_SIZE = 1 << 26;
+    /** The most bytes a binary PGM header is expected to take up. */
+    private static final int PGM_HEADER_SIZE = 1024;
 
     // private fields
     /** The size of the compressed image. */
-    private int compressedSize;
-    /** The square dimension of the tree. */
+    private long compressedSize;
+    /** The square dimension of the tree, a power of 2 covering the whole image. */
     private int dim;
+    /** The width of the image, which may be less than the dimension of the tree. */
+    private int width;
+    /** The height of the image, which may be less than the dimension of the tree. */
+    private int height;
     /** The raw image. */
     private int [][] rawImage;
     /** The size of the raw image. */
-    private int rawSize;
+    private long rawSize;
     /** The root node in the tree. */
     private FourZipNode root;
     /** The map of termination nodes which saves a heck of a lot of memory in the end */
     private Map<Integer, FourZipNode> terminationNodes;
+    /** The smallest pixel in each block, for every level of the tree above the pixels (only while compressing lossily). */
+    private int [][] blockMin;
+    /** The largest pixel in each block, for every level of the tree above the pixels (only while compressing lossily). */
+    private int [][] blockMax;
+    /** The sum of the pixels in each block, for every level of the tree above the pixels (only while compressing lossily). */
+    private long [][] blockSum;
+    /** The root node of the previous frame's tree, if this tree is a frame encoded against it. */
+    private FourZipNode previousRoot;
+    /** The raw image of the previous frame, if this tree is a frame encoded against it. */
+    private int [][] previousImage;
+    /** The side dimension of a tile, if this tree was compressed a tile at a time. */
+    private int tileDim;
+    /** The value of every tile and block of tiles, level by level, if this tree was compressed a tile at a time. */
+    private int [][] tileValues;
+    /** The temporary directory of the composite tiles' fragment files, if this tree was compressed a tile at a time. */
+    private Path tileDir;
+    /** Whether the tree has any SAME_AS_PREVIOUS or raw block nodes, which only a width and height header allows. */
+    private boolean extendedNodes;
 
     /**
      * Create an initially empty tree.
@@ -28,9 +73,16 @@ public class QTree
         // not really needed, but just to be certain they're the way we want them
         this.compressedSize = 0;
         this.dim = 0;
+        this.width = 0;
+        this.height = 0;
         this.rawImage = null;
         this.rawSize = 0;
         this.root = null;
+        this.previousRoot = null;
+        this.previousImage = null;
+        this.tileDim = 0;
+        this.tileValues = null;
+        this.tileDir = null;
 
         // except this, we need to to this or it blows up
         this.terminationNodes = new HashMap<>();
@@ -43,10 +95,10 @@ public class QTree
      *
      * @throws FourZipException If an image has not been compressed, or no compressed image has been read in.
      */
-    public int getCompressedSize() throws FourZipException
+    public long getCompressedSize() throws FourZipException
     {
         // check if we have a compressed image or not
-        if(this.root == null)
+        if(this.root == null && this.tileValues == null)
             throw new FourZipException("No compressed image yet.");
         return compressedSize;
     }
@@ -73,30 +125,82 @@ public class QTree
      *
      * @throws FourZipException If the raw image does not exist (yet).
      */
-    public int getRawSize() throws FourZipException
+    public long getRawSize() throws FourZipException
     {
-        // check if we actually /have/ a raw size
-        if(rawImage == null)
+        // check if we actually /have/ a raw size (a tiled compression never holds the whole raw image)
+        if(rawSize == 0)
             throw new FourZipException("No raw image yet.");
         return rawSize;
     }
 
     /**
-     * Get the image's square dimension.
+     * Get the tree's square dimension, the power of 2 covering the whole image.
      *
      * @return The square dimension.
      */
     public int getSideDim() { return dim; }
 
+    /**
+     * Get the image's width.
+     *
+     * @return The width.
+     */
+    public int getWidth() { return width; }
+
+    /**
+     * Get the image's height.
+     *
+     * @return The height.
+     */
+    public int getHeight() { return height; }
+
+    /**
+     * Set the size of the image. The tree covers the smallest power of 2 square the image fits in; the rest of that
+     * square is outside the image, and is never stored, scanned or written.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     */
+    private void setDimensions(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.rawSize = (long)width*height;
+        // the next power of 2 up from the longer side
+        int side = Math.max(width, height);
+        this.dim = (side <= 1) ? 1 : Integer.highestOneBit(side - 1) << 1;
+    }
+
+    /**
+     * Get how many rows of a region are inside the image.
+     *
+     * @param row the first row of the region
+     * @param size the size of the region
+     *
+     * @return The number of rows of the region inside the image, 0 if none are.
+     */
+    private int rowsIn(int row, int size) { return Math.max(0, Math.min(size, this.height - row)); }
+
+    /**
+     * Get how many columns of a region are inside the image.
+     *
+     * @param col the first column of the region
+     * @param size the size of the region
+     *
+     * @return The number of columns of the region inside the image, 0 if none are.
+     */
+    private int colsIn(int col, int size) { return Math.max(0, Math.min(size, this.width - col)); }
+
     /**
      * This is the core routine for uncompressing an image stored in a file into its raw image (a 2-D array of grayscale
      * values (0-255). The main steps are as follows.
      *
      * 1. Open the compressed image file.
-     * 2. Read the file size.
+     * 2. Read the file size: either the number of pixels of a square power of 2 image, or its width and height (which
+     *    any image with SAME_AS_PREVIOUS or raw block nodes gives, even a square power of 2 one).
      * 3. Build the FourZip tree from the remaining numerical values in the file.
      *
-     * There is only one integer value on each line.
+     * There is only one integer value on each line, except the width and height share the first line.
      *
      * @param filename The name of the file containing the compressed image.
      *
@@ -106,24 +210,74 @@ public class QTree
      */
     public static QTree compressedFromFile(String filename) throws IOException
     {
-        // initially makes an empty QTree
+        // initially makes an empty QTree, then fills it in
+        return readCompressed(new QTree(), filename);
+    }
+
+    /**
+     * Read in a frame of a sequence which was compressed against the previous frame. Any subtree marked as the same
+     * as the previous frame is shared with the previous frame's tree, and its pixels are copied straight out of the
+     * previous frame's image when uncompressing.
+     *
+     * @param filename The name of the file containing the compressed frame.
+     * @param previous The previous frame, already uncompressed.
+     *
+     * @return The QTree instance created from the file data.
+     *
+     * @throws IOException If something goes wrong with the file, including formatting errors.
+     * @throws FourZipException If the previous frame has not been uncompressed yet.
+     */
+    public static QTree compressedFromFile(String filename, QTree previous) throws IOException, FourZipException
+    {
+        // we need the previous frame's pixels to fill in the parts that haven't changed
+        if(previous.root == null || previous.rawImage == null)
+            throw new FourZipException("No uncompressed previous frame yet.");
+
+        // initially makes an empty QTree, remembering the frame it's based on
         QTree tree = new QTree();
+        tree.previousRoot = previous.root;
+        tree.previousImage = previous.rawImage;
+        readCompressed(tree, filename);
 
+        // the frames have to line up pixel for pixel
+        if(tree.width != previous.width || tree.height != previous.height)
+            throw new FourZipException("Frames must be the same size.");
+        return tree;
+    }
+
+    /**
+     * Read the compressed image in a file into an empty tree.
+     *
+     * @param tree The tree to fill in.
+     * @param filename The name of the file containing the compressed image.
+     *
+     * @return The tree, now filled in.
+     *
+     * @throws IOException If something goes wrong with the file, including formatting errors.
+     */
+    private static QTree readCompressed(QTree tree, String filename) throws IOException
+    {
         /* < file reader built >  */
         // constructs a new BufferedReader reading in the file
         BufferedReader file = new BufferedReader(new FileReader(filename));
 
         /* < setting a few fields > */
-        // the compressed size is the number of lines in the file
-        tree.rawSize = Integer.parseInt(file.readLine());
+        // the first line is either the raw size of a square image, or the width and height
+        String [] size = file.readLine().trim().split("\\s+");
         // set compressedSize to one since we just read the first line
         tree.compressedSize = 1;
-        // the dimension is the square-root of the first line
-        tree.dim = (int)Math.round(Math.sqrt(tree.rawSize));
+        if(size.length == 2)
+            tree.setDimensions(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        else
+        {
+            // the dimension is the square-root of the first line
+            int side = (int)Math.round(Math.sqrt(Long.parseLong(size[0])));
+            tree.setDimensions(side, side);
+        }
 
         /* < parsing the file in to root > */
         // set the root of the tree to be the return of the parse file on the remaining lines
-        tree.root = parse(file);
+        tree.root = tree.parse(file, tree.previousRoot, Coordinate.ORIGIN, tree.dim);
 
         // closes the file so no issues are encountered later on
         file.close();
@@ -138,19 +292,96 @@ public class QTree
      *
      * Recursively speaking, the input file stream contains the root node's value followed when appropriate by the
      * string values of each of its sub-nodes, going in a L-to-R, top-to-bottom order (quadrants UL, UR, LL, LR).
+     * A subtree that is the same as the previous frame's is just the SAME_AS_PREVIOUS value, and the previous frame's
+     * subtree is used for it. A raw block is the RAW_BLOCK value followed by all of the region's pixels inside the
+     * image. A region entirely outside the image isn't in the file at all.
      *
      * @param file A file that may have already been partially parsed.
+     * @param previous The previous frame's node for the same region, or null if there isn't one.
+     * @param start The start coordinate of the region the subtree represents.
+     * @param size The size of the region the subtree represents.
      *
-     * @return The root node of the subtree that has been created.
+     * @return The root node of the subtree that has been created, or null if the region is outside the image.
      *
      * @throws IOException If there is any problem with the file, or file format.
      */
-    private static FourZipNode parse(BufferedReader file) throws IOException
+    private FourZipNode parse(BufferedReader file, FourZipNode previous, Coordinate start, int size) throws IOException
     {
+        // nothing was written for a region outside the image
+        int rows = rowsIn(start.getRow(), size);
+        int cols = colsIn(start.getCol(), size);
+        if(rows == 0 || cols == 0)
+            return null;
+
         // gets the number on the next line
         int line = Integer.parseInt(file.readLine());
+
+        // if the subtree hasn't changed, share the previous frame's
+        if(line == SAME_AS_PREVIOUS)
+        {
+            if(!isComposite(previous))
+                throw new IOException("Frame does not match its previous frame.");
+            this.extendedNodes = true;
+            return previous;
+        }
+
+        // a raw block is followed by its pixels
+        if(line == RAW_BLOCK)
+        {
+            this.extendedNodes = true;
+            int [] pixels = new int[rows*cols];
+            for(int pixel = 0; pixel < pixels.length; ++pixel)
+                pixels[pixel] = Integer.parseInt(file.readLine());
+            return new FourZipNode(pixels);
+        }
+
         // if number isn't -1, we've reached a termination point, else parse again recursively
-        return (line != QUAD_SPLIT) ? new FourZipNode(line) : new FourZipNode(parse(file), parse(file), parse(file), parse(file));
+        if(line != QUAD_SPLIT)
+            return new FourZipNode(line);
+        FourZipNode [] children = new FourZipNode[Quadrant.values().length];
+        for(Quadrant quadrant : Quadrant.values())
+            children[quadrant.ordinal()] = parse(file, previousChild(previous, quadrant),
+                    quadrant(start, size, quadrant), size/2);
+        return new FourZipNode(children);
+    }
+
+    /**
+     * Get the previous frame's node for a quadrant of a region.
+     *
+     * @param previous The previous frame's node for the whole region, or null if there isn't one.
+     * @param quadrant Which quadrant of the region.
+     *
+     * @return The previous frame's node for the quadrant, or null if there isn't one.
+     */
+    private static FourZipNode previousChild(FourZipNode previous, Quadrant quadrant)
+    {
+        return (previous != null && previous.getValue() == QUAD_SPLIT) ? previous.getChild(quadrant) : null;
+    }
+
+    /**
+     * Get the start coordinate of a quadrant of a region.
+     *
+     * @param start The start coordinate of the whole region.
+     * @param size The size of the whole region.
+     * @param quadrant Which quadrant of the region.
+     *
+     * @return The start coordinate of the quadrant.
+     */
+    private static Coordinate quadrant(Coordinate start, int size, Quadrant quadrant)
+    {
+        return new Coordinate(start.getRow() + quadrant.rowDelta(size/2), start.getCol() + quadrant.colDelta(size/2));
+    }
+
+    /**
+     * Check whether a node stands for more than a single value, that is whether it is split or a raw block.
+     *
+     * @param node The node to check, which may be null.
+     *
+     * @return Whether the node is split or a raw block.
+     */
+    private static boolean isComposite(FourZipNode node)
+    {
+        return node != null && (node.getValue() == QUAD_SPLIT || node.getValue() == RAW_BLOCK);
     }
 
     /**
@@ -160,15 +391,17 @@ public class QTree
      */
     public void uncompress() throws FourZipException
     {
-        // can't uncompress if there's no root
+        // can't uncompress if there's no root, and a tree compressed a tile at a time never holds more than a tile
+        if(this.tileValues != null)
+            throw new FourZipException("A tiled image must be written out and read back in to be uncompressed.");
         if(this.root == null)
             throw new FourZipException("No compressed image yet.");
 
-        // sets the raw image array to a new one
-        this.rawImage = new int [this.dim][this.dim];
+        // sets the raw image array to a new one, just big enough for the image
+        this.rawImage = new int [this.height][this.width];
 
         // runs the uncompress routine
-        uncompress(Coordinate.ORIGIN, this.dim, this.root);
+        uncompress(Coordinate.ORIGIN, this.dim, this.root, this.previousRoot);
     }
 
     /**
@@ -186,19 +419,45 @@ public class QTree
      *      lower left: (1, 0)
      *      lower right: (1, 1)
      *
+     * If the node is split but is the very same subtree as in the previous frame, its pixels are instead copied from
+     * the previous frame's image. Only the part of the square inside the image is filled, and a null node is a square
+     * entirely outside it.
+     *
      * @param coord The coordinate of the upper left corner of the square to be filled.
      * @param dim2 Both the length and width of the square to be filled.
      * @param node The root of the FourZip subtree that will be converted.
+     * @param previous The previous frame's node for the same region, or null if there isn't one.
      */
-    private void uncompress(Coordinate coord, int dim2, FourZipNode node)
+    private void uncompress(Coordinate coord, int dim2, FourZipNode node, FourZipNode previous)
     {
+        // there's nothing to fill outside the image
+        if(node == null)
+            return;
+        int rows = rowsIn(coord.getRow(), dim2);
+        int cols = colsIn(coord.getCol(), dim2);
+
+        // if this subtree hasn't changed since the previous frame, neither have its pixels
+        if(isComposite(node) && node == previous)
+        {
+            for (int row = coord.getRow(); row < coord.getRow() + rows; ++row)
+                System.arraycopy(previousImage[row], coord.getCol(), rawImage[row], coord.getCol(), cols);
+            return;
+        }
+
+        // if this node is a raw block, copy its pixels in a row at a time
+        if(node.getValue() == RAW_BLOCK)
+        {
+            for (int row = 0; row < rows; ++row)
+                System.arraycopy(node.getPixels(), row*cols, rawImage[coord.getRow() + row], coord.getCol(), cols);
+            return;
+        }
 
         // if this node doesn't have children, set the rawImage pixels to our value
         if(node.getValue() != QUAD_SPLIT)
         {
-            // faster than using Arrays.fill(rawImage[row], coord.getCol(), coord.getCol()+dim2, node.getValue());
-            for (int row = coord.getRow(); row < coord.getRow() + dim2; ++row)
-                for(int col = coord.getCol(); col < coord.getCol() + dim2; ++col)
+            // faster than using Arrays.fill(rawImage[row], coord.getCol(), coord.getCol()+cols, node.getValue());
+            for (int row = coord.getRow(); row < coord.getRow() + rows; ++row)
+                for(int col = coord.getCol(); col < coord.getCol() + cols; ++col)
                     rawImage[row][col] = node.getValue();
             // we return here so we don't waste any time trying to go further (which would also probably crash it)
             return;
@@ -207,13 +466,17 @@ public class QTree
         // otherwise keep trying to uncompress
 
         // upper left original row, original column
-        uncompress(new Coordinate(coord.getRow(), coord.getCol()), dim2/2, node.getChild(Quadrant.UL));
+        uncompress(new Coordinate(coord.getRow(), coord.getCol()), dim2/2, node.getChild(Quadrant.UL),
+                previousChild(previous, Quadrant.UL));
         // upper right, original row, column + remaining columns/2
-        uncompress(new Coordinate(coord.getRow(), (coord.getCol() + dim2/2)), dim2/2, node.getChild(Quadrant.UR));
+        uncompress(new Coordinate(coord.getRow(), (coord.getCol() + dim2/2)), dim2/2, node.getChild(Quadrant.UR),
+                previousChild(previous, Quadrant.UR));
         // lower left original row + remaining rows/2, original column
-        uncompress(new Coordinate(coord.getRow() + dim2/2, coord.getCol()), dim2/2, node.getChild(Quadrant.LL));
+        uncompress(new Coordinate(coord.getRow() + dim2/2, coord.getCol()), dim2/2, node.getChild(Quadrant.LL),
+                previousChild(previous, Quadrant.LL));
         // lower right original row + remaining rows/2 , column + remaining columns/2
-        uncompress(new Coordinate(coord.getRow() + dim2/2, coord.getCol() + dim2/2), dim2/2, node.getChild(Quadrant.LR));
+        uncompress(new Coordinate(coord.getRow() + dim2/2, coord.getCol() + dim2/2), dim2/2, node.getChild(Quadrant.LR),
+                previousChild(previous, Quadrant.LR));
     }
 
     /**
@@ -228,18 +491,25 @@ public class QTree
     public void writeCompressed(String outFile) throws IOException, FourZipException
     {
         // check if we have a compressed image to write
-        if(this.root == null)
+        if(this.root == null && this.tileValues == null)
             throw new FourZipException("No compressed image yet.");
 
-        // make a new writer with outFile
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outFile));
+        // make a new writer with outFile, with a big buffer since it's only flushed when it fills up
+        BufferedWriter writer = new BufferedWriter(new FileWriter(outFile), WRITE_BUFFER_SIZE);
 
-        // first writes the size of the file
-        writer.write((this.dim*this.dim) + "\n");
-        writer.flush();
+        // first writes the size of the file, as just the raw size for a square power of 2 image like it always has been;
+        // a tree with SAME_AS_PREVIOUS or raw block nodes always gives its width and height, so that a reader from
+        // before they existed fails on the header rather than reading their markers and pixels as a garbled tree
+        if(this.width == this.dim && this.height == this.dim && !this.extendedNodes)
+            writer.write(((long)this.dim*this.dim) + "\n");
+        else
+            writer.write(this.width + " " + this.height + "\n");
 
-        // then, writes the tree
-        writeCompressed(this.root, writer);
+        // then, writes the tree, from the tiles' fragments if it was compressed a tile at a time
+        if(this.tileValues != null)
+            writeTiles(this.tileValues.length - 1, 0, 0, writer);
+        else
+            writeCompressed(this.root, this.previousRoot, writer);
 
         // closes the writer so that no errors are included
         writer.close();
@@ -247,37 +517,91 @@ public class QTree
 
     /**
      * The private writer is a recursive helper routine that writes out the compressed rawImage. It goes through the
-     * tree in preorder fashion writing out the values of each node as they are encountered.
+     * tree in preorder fashion writing out the values of each node as they are encountered, followed by the pixels of
+     * any raw block. A split or raw subtree that is the very same as the previous frame's is written as just
+     * SAME_AS_PREVIOUS. Nothing at all is written for a (null) region outside the image.
      *
      * @param node The current node in the tree.
+     * @param previous The previous frame's node for the same region, or null if there isn't one.
      * @param writer The writer to write the node data out to.
      *
      * @throws IOException If there are issues with the writer.
      */
-    private void writeCompressed(FourZipNode node, BufferedWriter writer) throws IOException
+    private void writeCompressed(FourZipNode node, FourZipNode previous, BufferedWriter writer) throws IOException
     {
+        // regions outside the image aren't written
+        if(node == null)
+            return;
+
         // adds 1 to compressed size
         ++compressedSize;
-        writer.write(node.getValue() + "\n");
-        writer.flush();
+
+        // the reader can get this whole subtree from the previous frame
+        if(isComposite(node) && node == previous)
+        {
+            appendValue(SAME_AS_PREVIOUS, writer);
+            writer.write('\n');
+            return;
+        }
+
+        appendValue(node.getValue(), writer);
+        writer.write('\n');
+
+        // if this node is a raw block, its pixels come right after it
+        if(node.getValue() == RAW_BLOCK)
+        {
+            compressedSize += node.getPixels().length;
+            for(int pixel : node.getPixels())
+            {
+                appendValue(pixel, writer);
+                writer.write('\n');
+            }
+        }
 
         // if this node has children
         if(node.getValue() == QUAD_SPLIT)
         {
             // writes the upper left child
-            writeCompressed(node.getChild(Quadrant.UL), writer);
+            writeCompressed(node.getChild(Quadrant.UL), previousChild(previous, Quadrant.UL), writer);
             // writes the upper right child
-            writeCompressed(node.getChild(Quadrant.UR), writer);
+            writeCompressed(node.getChild(Quadrant.UR), previousChild(previous, Quadrant.UR), writer);
             // writes the lower left child
-            writeCompressed(node.getChild(Quadrant.LL), writer);
+            writeCompressed(node.getChild(Quadrant.LL), previousChild(previous, Quadrant.LL), writer);
             // writes the lower right child
-            writeCompressed(node.getChild(Quadrant.LR), writer);
+            writeCompressed(node.getChild(Quadrant.LR), previousChild(previous, Quadrant.LR), writer);
+        }
+    }
+
+    /**
+     * Append a node's value to a writer or other output as a decimal number. Unlike converting it to a String first,
+     * this doesn't allocate anything, which matters when there are millions of nodes.
+     *
+     * @param value The value to append.
+     * @param out The output to append it to.
+     *
+     * @throws IOException If there are issues with the output.
+     */
+    private static void appendValue(int value, Appendable out) throws IOException
+    {
+        // the sign goes first
+        if(value < 0)
+        {
+            out.append('-');
+            value = -value;
         }
+
+        // finds the biggest power of ten in the value, then appends the digits from there on down
+        int power = 1;
+        while(value / power >= 10)
+            power *= 10;
+        for(; power > 0; power /= 10)
+            out.append((char)('0' + (value / power) % 10));
     }
 
     /**
      * Check to see whether a region in the raw image contains the same value. This routine is used by the private
-     * compress routine so that it can construct the nodes in the tree.
+     * compress routine so that it can construct the nodes in the tree. Only the part of the region inside the image
+     * is checked.
      *
      * @param start the starting coordinate in the region
      * @param size the size of the region
@@ -290,8 +614,10 @@ public class QTree
         int ref = rawImage[start.getRow()][start.getCol()];
 
         // if we run into a mismatch, we can't compress (at least without any loss of data)
-        for(int row = start.getRow(); row < start.getRow()+size; ++row)
-            for(int col = start.getCol(); col < start.getCol()+size; ++col)
+        int rows = rowsIn(start.getRow(), size);
+        int cols = colsIn(start.getCol(), size);
+        for(int row = start.getRow(); row < start.getRow()+rows; ++row)
+            for(int col = start.getCol(); col < start.getCol()+cols; ++col)
                 if(rawImage[row][col] != ref)
                     return false;
 
@@ -309,8 +635,270 @@ public class QTree
         // if our rawImage is null, throw an error
         if(rawImage == null)
             throw new FourZipException("No raw image yet.");
+        // this image stands on its own
+        this.previousRoot = null;
+        this.previousImage = null;
+        this.extendedNodes = false;
         // compresses everything into a nice (hopefully smaller) package
-        this.root = compress(Coordinate.ORIGIN, this.dim);
+        this.root = compress(Coordinate.ORIGIN, this.dim, null);
+    }
+
+    /**
+     * Compress a raw image file already read in to this object as the next frame of a sequence. Any split or raw region
+     * whose pixels are the same as in the previous frame shares the previous frame's subtree, and is written out as
+     * just a SAME_AS_PREVIOUS marker.
+     *
+     * @param previous The previous frame, already compressed.
+     *
+     * @throws FourZipException If there is no raw image (yet), the previous frame has not been compressed, or the
+     *                          frames are different sizes.
+     */
+    public void compress(QTree previous) throws FourZipException
+    {
+        // if our rawImage is null, throw an error
+        if(rawImage == null)
+            throw new FourZipException("No raw image yet.");
+        // we need both the previous frame's pixels and its tree to compare against
+        if(previous.root == null || previous.rawImage == null)
+            throw new FourZipException("No compressed previous frame yet.");
+        // the frames have to line up pixel for pixel
+        if(previous.width != this.width || previous.height != this.height)
+            throw new FourZipException("Frames must be the same size.");
+
+        this.previousRoot = previous.root;
+        this.previousImage = previous.rawImage;
+        this.extendedNodes = false;
+        // compresses everything against the previous frame
+        this.root = compress(Coordinate.ORIGIN, this.dim, this.previousRoot);
+    }
+
+    /**
+     * Check to see whether a region in the raw image is the same as in the previous frame.
+     *
+     * @param start the starting coordinate in the region
+     * @param size the size of the region
+     *
+     * @return Whether the region is unchanged.
+     */
+    private boolean sameAsPrevious(Coordinate start, int size)
+    {
+        // compares the part of the region inside the image a row at a time
+        int rows = rowsIn(start.getRow(), size);
+        int cols = colsIn(start.getCol(), size);
+        for(int row = start.getRow(); row < start.getRow()+rows; ++row)
+            if(Arrays.mismatch(rawImage[row], start.getCol(), start.getCol()+cols,
+                    previousImage[row], start.getCol(), start.getCol()+cols) != -1)
+                return false;
+        return true;
+    }
+
+    /**
+     * Compress a raw image file already read in to this object, allowing some loss of data. A region is stored as a
+     * single value, the mean of its pixels, whenever no pixel in it is more than tolerance away from that mean. A
+     * tolerance of 0 is the same as a lossless compress.
+     *
+     * @param tolerance the largest allowed absolute difference between a pixel and the value stored for it
+     *
+     * @throws FourZipException If there is no raw image (yet), or the tolerance is negative.
+     */
+    public void compress(int tolerance) throws FourZipException
+    {
+        // a negative tolerance can't be met by anything
+        if(tolerance < 0)
+            throw new FourZipException("Tolerance must not be negative.");
+        // with no tolerance at all, it's just the lossless compression
+        if(tolerance == 0)
+        {
+            compress();
+            return;
+        }
+        // if our rawImage is null, throw an error
+        if(rawImage == null)
+            throw new FourZipException("No raw image yet.");
+
+        // this image stands on its own
+        this.previousRoot = null;
+        this.previousImage = null;
+        this.extendedNodes = false;
+        // builds the block pyramid, compresses from the top level (a single block), then throws the pyramid away
+        int levels = Integer.numberOfTrailingZeros(this.dim);
+        buildPyramid(levels);
+        this.root = compress(levels, 0, 0, tolerance);
+        this.blockMin = null;
+        this.blockMax = null;
+        this.blockSum = null;
+    }
+
+    /**
+     * Build the minimum, maximum and sum of every block the tree could hold, one level at a time from just above the
+     * pixels up to the whole image. Blocks always line up with quadrants, so each block at a level is the four blocks
+     * below it, and checking whether a block can be compressed no longer means rescanning its pixels. Only blocks
+     * with some part inside the image are kept.
+     *
+     * @param levels the level of the whole image (the log base 2 of the dimension)
+     */
+    private void buildPyramid(int levels)
+    {
+        this.blockMin = new int[levels + 1][];
+        this.blockMax = new int[levels + 1][];
+        this.blockSum = new long[levels + 1][];
+
+        for(int level = 1; level <= levels; ++level)
+        {
+            // the number of blocks across and down at this level
+            int across = blocksAcross(level);
+            int down = blocksDown(level);
+            this.blockMin[level] = new int[across*down];
+            this.blockMax[level] = new int[across*down];
+            this.blockSum[level] = new long[across*down];
+
+            for(int row = 0; row < down; ++row)
+                for(int col = 0; col < across; ++col)
+                {
+                    int min = Integer.MAX_VALUE;
+                    int max = Integer.MIN_VALUE;
+                    long sum = 0;
+                    // combines the four quadrants from the level below, skipping any outside the image
+                    for(Quadrant quadrant : Quadrant.values())
+                    {
+                        int subRow = 2*row + quadrant.rowDelta(1);
+                        int subCol = 2*col + quadrant.colDelta(1);
+                        if(subRow >= blocksDown(level - 1) || subCol >= blocksAcross(level - 1))
+                            continue;
+                        min = Math.min(min, blockMin(level - 1, subRow, subCol));
+                        max = Math.max(max, blockMax(level - 1, subRow, subCol));
+                        sum += blockSum(level - 1, subRow, subCol);
+                    }
+                    this.blockMin[level][row*across + col] = min;
+                    this.blockMax[level][row*across + col] = max;
+                    this.blockSum[level][row*across + col] = sum;
+                }
+        }
+    }
+
+    /**
+     * Get the number of blocks across the image at a level, counting a block only partly inside the image.
+     *
+     * @param level the level of the blocks, a block at level n being 2^n x 2^n pixels
+     *
+     * @return The number of blocks across.
+     */
+    private int blocksAcross(int level) { return (this.width + (1 << level) - 1) >> level; }
+
+    /**
+     * Get the number of blocks down the image at a level, counting a block only partly inside the image.
+     *
+     * @param level the level of the blocks, a block at level n being 2^n x 2^n pixels
+     *
+     * @return The number of blocks down.
+     */
+    private int blocksDown(int level) { return (this.height + (1 << level) - 1) >> level; }
+
+    /**
+     * Get the smallest pixel in a block. Level 0 blocks are the pixels themselves.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     *
+     * @return The smallest pixel value in the block.
+     */
+    private int blockMin(int level, int row, int col)
+    {
+        return (level == 0) ? rawImage[row][col] : blockMin[level][row*blocksAcross(level) + col];
+    }
+
+    /**
+     * Get the largest pixel in a block. Level 0 blocks are the pixels themselves.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     *
+     * @return The largest pixel value in the block.
+     */
+    private int blockMax(int level, int row, int col)
+    {
+        return (level == 0) ? rawImage[row][col] : blockMax[level][row*blocksAcross(level) + col];
+    }
+
+    /**
+     * Get the sum of the pixels in a block. Level 0 blocks are the pixels themselves.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     *
+     * @return The sum of the pixel values in the block.
+     */
+    private long blockSum(int level, int row, int col)
+    {
+        return (level == 0) ? rawImage[row][col] : blockSum[level][row*blocksAcross(level) + col];
+    }
+
+    /**
+     * This is the lossy compression routine. It works just like the lossless one, except a region is compressed when
+     * all of its pixels are within tolerance of their mean, which is looked up in the block pyramid. A split region is
+     * always kept as a split, never made a raw block, so the file stays one that any 4-Zip reader can read.
+     *
+     * @param level the level of this region, a region at level n being 2^n x 2^n pixels
+     * @param row the row of this region among the regions of that level
+     * @param col the column of this region among the regions of that level
+     * @param tolerance the largest allowed absolute difference between a pixel and the value stored for it
+     *
+     * @return a node containing the compression information for the region, or null if it is outside the image
+     */
+    private FourZipNode compress(int level, int row, int col, int tolerance)
+    {
+        // there's nothing to compress outside the image
+        Coordinate start = new Coordinate(row << level, col << level);
+        long pixels = (long)rowsIn(start.getRow(), 1 << level) * colsIn(start.getCol(), 1 << level);
+        if(pixels == 0)
+            return null;
+
+        // the mean of the region is what we'd store for it
+        int mean = (int)Math.round((double)blockSum(level, row, col) / pixels);
+        if(blockMax(level, row, col) - mean <= tolerance && mean - blockMin(level, row, col) <= tolerance)
+            // return the shared node pointer, adding it if we have no record of the key
+            return terminationNodes.computeIfAbsent(mean, FourZipNode::new);
+
+        // otherwise we recurse into sub-quadrants
+        FourZipNode [] children = new FourZipNode[Quadrant.values().length];
+        for(Quadrant quadrant : Quadrant.values())
+            children[quadrant.ordinal()] = compress(level - 1, 2*row + quadrant.rowDelta(1),
+                    2*col + quadrant.colDelta(1), tolerance);
+        return new FourZipNode(children);
+    }
+
+    /**
+     * Pick the cheaper way to write out a split region: as its subtree, or as a raw block of its pixels. Only regions
+     * up to MAX_RAW_BLOCK_DIM on a side are ever made raw, which keeps the raw blocks (and tiles) small, while still
+     * capping the whole image at barely more than its raw size. Any part of the subtree shared with the previous frame
+     * only costs its SAME_AS_PREVIOUS marker.
+     *
+     * @param split the subtree for the region
+     * @param previous the previous frame's node for the region, or null if there isn't one
+     * @param start the start coordinate for the region
+     * @param size the size the region represents
+     *
+     * @return either the subtree, or a raw block node for the region
+     */
+    private FourZipNode cheapest(FourZipNode split, FourZipNode previous, Coordinate start, int size)
+    {
+        // only the pixels inside the image would be stored
+        int rows = rowsIn(start.getRow(), size);
+        int cols = colsIn(start.getCol(), size);
+
+        // keeps the subtree unless the pixels (plus the raw block marker) are smaller
+        if(size > MAX_RAW_BLOCK_DIM || writtenSize(split, previous) <= 1 + rows*cols)
+            return split;
+
+        // copies the region's pixels out a row at a time
+        this.extendedNodes = true;
+        int [] pixels = new int[rows*cols];
+        for(int row = 0; row < rows; ++row)
+            System.arraycopy(rawImage[start.getRow() + row], start.getCol(), pixels, row*cols, cols);
+        return new FourZipNode(pixels);
     }
 
     /**
@@ -324,106 +912,1188 @@ public class QTree
      *    again. Just like with uncompressing, we can compute the starting point of the four sub-regions by using the
      *    starting point and size of the full region.
      *
+     * When compressing a frame against the previous one, a split or raw region whose pixels haven't changed just
+     * reuses the previous frame's subtree. A split region that would take more room to write out than its pixels,
+     * counting whatever it shares with the previous frame as just its marker, is stored as a raw block instead. Only
+     * the part of a region inside the image matters, and a region entirely outside it has no node at all.
+     *
      * @param start the start coordinate for this region
      * @param size the size this region represents
+     * @param previous the previous frame's node for this region, or null if there isn't one
      *
-     * @return a node containing the compression information for the region
+     * @return a node containing the compression information for the region, or null if it is outside the image
      */
-    private FourZipNode	compress(Coordinate start, int size)
+    private FourZipNode	compress(Coordinate start, int size, FourZipNode previous)
     {
-        if(size == 1 || canCompressBlock(start, size))
+        if(rowsIn(start.getRow(), size) == 0 || colsIn(start.getCol(), size) == 0)
+            return null;
+        if(isComposite(previous) && sameAsPrevious(start, size))
         {
-            // if we have no record of the key, add it
-            if(!terminationNodes.containsKey(this.rawImage[start.getRow()][start.getCol()]))
-                terminationNodes.put(this.rawImage[start.getRow()][start.getCol()],
-                        new FourZipNode(this.rawImage[start.getRow()][start.getCol()]));
-            // return the node pointer
-            return terminationNodes.get(this.rawImage[start.getRow()][start.getCol()]);
+            this.extendedNodes = true;
+            return previous;
         }
+        if(size == 1 || canCompressBlock(start, size))
+            // return the shared node pointer, adding it if we have no record of the key
+            return terminationNodes.computeIfAbsent(this.rawImage[start.getRow()][start.getCol()], FourZipNode::new);
         // if our size is one or we can compress the block, make a new FourZipNode with no children
         // otherwise we recurse into sub-quadrants
-        return new FourZipNode(
-                        compress(new Coordinate(start.getRow(), start.getCol()), size/2),
-                        compress(new Coordinate(start.getRow(), (start.getCol() + size/2)), size/2),
-                        compress(new Coordinate((start.getRow() + size/2), start.getCol()), size/2),
-                        compress(new Coordinate((start.getRow() + size/2), (start.getCol() + size/2)), size/2)
+        FourZipNode split = new FourZipNode(
+                        compress(new Coordinate(start.getRow(), start.getCol()), size/2,
+                                previousChild(previous, Quadrant.UL)),
+                        compress(new Coordinate(start.getRow(), (start.getCol() + size/2)), size/2,
+                                previousChild(previous, Quadrant.UR)),
+                        compress(new Coordinate((start.getRow() + size/2), start.getCol()), size/2,
+                                previousChild(previous, Quadrant.LL)),
+                        compress(new Coordinate((start.getRow() + size/2), (start.getCol() + size/2)), size/2,
+                                previousChild(previous, Quadrant.LR))
                 );
+        // weighs the split, less whatever it shares with the previous frame, against the raw pixels
+        return cheapest(split, previous, start, size);
+    }
+
+    /**
+     * Get the number of values it takes to write out a subtree, just as the writer does: a split or raw subtree that
+     * is the very same as the previous frame's takes just its SAME_AS_PREVIOUS marker.
+     *
+     * @param node the root of the subtree, or null if it is outside the image
+     * @param previous the previous frame's node for the same region, or null if there isn't one
+     *
+     * @return The number of values written for the subtree.
+     */
+    private static long writtenSize(FourZipNode node, FourZipNode previous)
+    {
+        if(node == null)
+            return 0;
+        if(isComposite(node) && node == previous)
+            return 1;
+        // without a previous frame split here, nothing further down can be shared either
+        if(node.getValue() != QUAD_SPLIT || previous == null || previous.getValue() != QUAD_SPLIT)
+            return node.getEncodedSize();
+        long size = 1;
+        for(Quadrant quadrant : Quadrant.values())
+            size += writtenSize(node.getChild(quadrant), previous.getChild(quadrant));
+        return size;
     }
 
     /**
      * Load a raw image. The input file is ASCII text. It contains a series of greyscale values as decimal numbers
-     * (0-255). The dimension is assumed square, and is computed from the length of file. There is one value per line.
+     * (0-255). The dimension is assumed square (though not necessarily a power of 2), and is computed from the length
+     * of file. There is one value per line.
      *
      * @param inputFile the name of the file representing the raw image
      *
      * @return The QTree instance created from the raw data.
      *
-     * @throws IOException if there are issues working with the file
+     * @throws IOException if there are issues working with the file, or the image is not square
      */
     public static QTree rawFromFile(String inputFile) throws IOException
     {
-        // initially makes an empty QTree
-        QTree tree = new QTree();
+        return rawFromValues(readValues(inputFile), 0, 0);
+    }
 
+    /**
+     * Load a raw image of a given size. The input file is ASCII text, just as for a square image, but it may hold any
+     * width and height of image, a row at a time.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image
+     * @param height the height of the image
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it doesn't hold width x height values
+     */
+    public static QTree rawFromFile(String inputFile, int width, int height) throws IOException
+    {
+        if(width < 1 || height < 1)
+            throw new IOException("Image size must be positive: " + width + "x" + height);
+        return rawFromValues(readValues(inputFile), width, height);
+    }
 
-        /* < file read in procedure > */
-        // makes a new Scanner pointing to the file
-        Scanner file = new Scanner(new File(inputFile));
+    /**
+     * Read every greyscale value out of an ASCII text raw image.
+     *
+     * @param inputFile the name of the file representing the raw image
+     *
+     * @return The values, in order.
+     *
+     * @throws IOException if there are issues working with the file, or it holds anything but greyscale values
+     */
+    private static List<Integer> readValues(String inputFile) throws IOException
+    {
         // a List of Integers that are read in from the file
         List<Integer> rawFile = new ArrayList<>();
-        // reading in the file here, it goes until we have no more ints left
-        while(file.hasNextInt()) { rawFile.add(file.nextInt()); }
+        // reading in the file here, it goes until we have no more values left
+        try(BufferedReader file = new BufferedReader(new FileReader(inputFile)))
+        {
+            for(int value = readPixel(file); value != -1; value = readPixel(file))
+                rawFile.add(value);
+        }
+        return rawFile;
+    }
+
+    /**
+     * Build a tree around the greyscale values read out of an ASCII text raw image.
+     *
+     * @param rawFile the values, in order
+     * @param width the width of the image, or 0 if it is square and its size is to be worked out from the values
+     * @param height the height of the image, or 0 if it is square and its size is to be worked out from the values
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are the wrong number of values
+     */
+    private static QTree rawFromValues(List<Integer> rawFile, int width, int height) throws IOException
+    {
+        // initially makes an empty QTree
+        QTree tree = new QTree();
 
 
         /* < setting a few fields > */
-        // sets the rawSize of the file
-        tree.rawSize = rawFile.size();
-        // sets the dimensions of the image (the side/height)
-        tree.dim = (int)Math.round(Math.sqrt(tree.rawSize));
+        // sets the dimensions of the image, from the rawSize of the file if it's square
+        if(width == 0)
+        {
+            width = height = (int)Math.round(Math.sqrt(rawFile.size()));
+            if((long)width*height != rawFile.size())
+                throw new IOException("Raw image of " + rawFile.size() + " pixels is not square, give its size.");
+        }
+        else if((long)width*height != rawFile.size())
+            throw new IOException("Raw image has " + rawFile.size() + " pixels, not " + width + "x" + height + ".");
+        tree.setDimensions(width, height);
 
 
         /* < building rawImage 2D array > */
         // makes an empty rawImage array
-        tree.rawImage = new int[tree.dim][tree.dim];
+        tree.rawImage = new int[height][];
         // pulls in each row and makes an array of it instead of going pixel by pixel
         // sets the rawImage 2D array
-        for(int row = 0; row < tree.dim; ++row)
-            tree.rawImage[row] = rawFile.subList((row*tree.dim), ((row+1)*tree.dim)).stream().mapToInt(n->n).toArray();
+        for(int row = 0; row < height; ++row)
+            tree.rawImage[row] = rawFile.subList((row*width), ((row+1)*width)).stream().mapToInt(n->n).toArray();
 
-        // closes the file so we don't have any issues
-        file.close();
+        // returns the final constructed tree
+        return tree;
+    }
+
+    /**
+     * Load a raw image in whatever format it is in. A file starting with the binary PGM magic number "P5" is read as
+     * a PGM image, a file ending in ".raw" is read as headerless 8-bit pixels, and anything else is read as ASCII text
+     * if it looks like decimal numbers and as headerless 8-bit pixels if it doesn't. Text and headerless images must
+     * be square; give the size of any other image.
+     *
+     * @param inputFile the name of the file representing the raw image
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file
+     */
+    public static QTree imageFromFile(String inputFile) throws IOException
+    {
+        return readImage(inputFile, 0, 0);
+    }
+
+    /**
+     * Load a raw image of a given size in whatever format it is in, just like for a square image. A PGM image must be
+     * the size given, and text and headerless images are read as that size.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image
+     * @param height the height of the image
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it isn't width x height pixels
+     */
+    public static QTree imageFromFile(String inputFile, int width, int height) throws IOException
+    {
+        if(width < 1 || height < 1)
+            throw new IOException("Image size must be positive: " + width + "x" + height);
+        return readImage(inputFile, width, height);
+    }
+
+    /**
+     * Read a raw image in whatever format it is in into a new tree.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image, or 0 if it is to be worked out from the file
+     * @param height the height of the image, or 0 if it is to be worked out from the file
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it is the wrong size
+     */
+    private static QTree readImage(String inputFile, int width, int height) throws IOException
+    {
+        PixelLayout layout = pixelLayout(inputFile, width, height);
+        if(layout == null)
+        {
+            // it started off looking like text, but may not have been
+            List<Integer> values = null;
+            try
+            {
+                values = readValues(inputFile);
+            }
+            catch(IOException e)
+            {
+                layout = bytesFallback(inputFile, width, height, e);
+            }
+            if(values != null)
+                return rawFromValues(values, width, height);
+        }
+
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            return bytesFromChannel(channel, layout);
+        }
+    }
+
+    /**
+     * Work out where the pixels of a raw image are, whatever format it is in. A file starting with the binary PGM
+     * magic number "P5" has its size and the start of its pixels in its header, a file ending in ".raw", or one whose
+     * start isn't just decimal numbers and whitespace, is headerless 8-bit pixels, and anything else is ASCII text.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image, or 0 if it is to be worked out from the file
+     * @param height the height of the image, or 0 if it is to be worked out from the file
+     *
+     * @return Where the pixels are, or null if the image looks like ASCII text.
+     *
+     * @throws IOException if there are issues working with the file, or it is the wrong size
+     */
+    private static PixelLayout pixelLayout(String inputFile, int width, int height) throws IOException
+    {
+        // peeks at the start of the file to see what it looks like
+        byte [] start = new byte[PGM_HEADER_SIZE];
+        int length;
+        try(InputStream file = new FileInputStream(inputFile))
+        {
+            length = Math.max(0, file.readNBytes(start, 0, start.length));
+        }
+
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            // PGM images always say so up front, along with their size
+            if(length >= 2 && start[0] == 'P' && start[1] == '5')
+            {
+                PixelLayout layout = pgmLayout(channel);
+                if(width != 0 && (layout.width != width || layout.height != height))
+                    throw new IOException("PGM image is " + layout.width + "x" + layout.height + ", not " + width +
+                            "x" + height + ".");
+                return layout;
+            }
+            if(inputFile.endsWith(".raw"))
+                return bytesLayout(channel, width, height);
+
+            // text images are nothing but digits and whitespace
+            for(int i = 0; i < length; ++i)
+                if((start[i] < '0' || start[i] > '9') && !isTextSpace(start[i]))
+                    return bytesLayout(channel, width, height);
+            return null;
+        }
+    }
+
+    /**
+     * Fall back to reading an image which only looked like ASCII text at the start as headerless 8-bit pixels. It
+     * only does so if the values in the part of the file peeked at were all good, so that what went wrong came after
+     * it; a file that goes wrong in there is just a bad text image, whatever size it is.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image, or 0 if it is to be worked out from the file
+     * @param height the height of the image, or 0 if it is to be worked out from the file
+     * @param textError what went wrong reading it as text
+     *
+     * @return Where the pixels are.
+     *
+     * @throws IOException textError, if it went wrong at the start of the file, or the file isn't the right size for
+     *                     headerless pixels either
+     */
+    private static PixelLayout bytesFallback(String inputFile, int width, int height, IOException textError)
+            throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            // peeks at the start of the file again, which is all digits and whitespace
+            ByteBuffer start = ByteBuffer.allocate(PGM_HEADER_SIZE);
+            channel.read(start, 0);
+            start.flip();
+            if(channel.size() <= start.limit())
+                throw textError;
+
+            // checks every value that ends in there; the last one may carry on past it
+            int value = 0;
+            while(start.hasRemaining())
+            {
+                byte c = start.get();
+                if(isTextSpace(c))
+                    value = 0;
+                else if((value = value*10 + (c - '0')) > 255)
+                    throw textError;
+            }
+            return bytesLayout(channel, width, height);
+        }
+        catch(IOException e)
+        {
+            throw textError;
+        }
+    }
+
+    /**
+     * Load a binary PGM (P5) image. The header holds the magic number, width, height and maximum grey value, and is
+     * followed by one byte per pixel, which is mapped straight into memory and copied into the raw image. The image
+     * may be any width and height, but must be 8-bit with a maximum grey value of 255, which is what writePgm writes,
+     * so the pixels are read and written back out unscaled.
+     *
+     * @param inputFile the name of the file representing the image
+     *
+     * @return The QTree instance created from the image data.
+     *
+     * @throws IOException if there are issues working with the file, or it is not an 8-bit PGM image
+     */
+    public static QTree pgmFromFile(String inputFile) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            return bytesFromChannel(channel, pgmLayout(channel));
+        }
+    }
+
+    /**
+     * Read the header of a binary PGM (P5) image to find out where its pixels are.
+     *
+     * @param channel the open file
+     *
+     * @return Where the pixels are.
+     *
+     * @throws IOException if there are issues working with the file, it is not an 8-bit PGM image, or its size or
+     *                     maximum grey value is not one we can read
+     */
+    private static PixelLayout pgmLayout(FileChannel channel) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(PGM_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if(!pgmToken(header).equals("P5"))
+            throw new IOException("Not a binary PGM image.");
+        int width = pgmNumber(header);
+        int height = pgmNumber(header);
+        if(width < 1 || height < 1)
+            throw new IOException("Bad PGM image size: " + width + "x" + height);
+        // any other maximum would need the pixels scaled, both on the way in and on the way back out
+        int maxValue = pgmNumber(header);
+        if(maxValue != 255)
+            throw new IOException("Only PGM images with a maximum grey value of 255 are supported, not " + maxValue);
+        return new PixelLayout(header.position(), width, height);
+    }
+
+    /**
+     * Load a headerless raw image of one byte per pixel. The file is mapped straight into memory and copied into the
+     * raw image. The dimension is assumed square, and is computed from the length of the file.
+     *
+     * @param inputFile the name of the file representing the raw image
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it is not square
+     */
+    public static QTree bytesFromFile(String inputFile) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            return bytesFromChannel(channel, bytesLayout(channel, 0, 0));
+        }
+    }
+
+    /**
+     * Load a headerless raw image of one byte per pixel of a given size. The file is mapped straight into memory and
+     * copied into the raw image a row at a time.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image
+     * @param height the height of the image
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it isn't width x height pixels
+     */
+    public static QTree bytesFromFile(String inputFile, int width, int height) throws IOException
+    {
+        if(width < 1 || height < 1)
+            throw new IOException("Image size must be positive: " + width + "x" + height);
+        try(FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ))
+        {
+            return bytesFromChannel(channel, bytesLayout(channel, width, height));
+        }
+    }
+
+    /**
+     * Work out where the pixels of a headerless raw image of one byte per pixel are, which is the whole file.
+     *
+     * @param channel the open file
+     * @param width the width of the image, or 0 if it is square and its size is to be worked out from the file
+     * @param height the height of the image, or 0 if it is square and its size is to be worked out from the file
+     *
+     * @return Where the pixels are.
+     *
+     * @throws IOException if there are issues working with the file, or it is the wrong size
+     */
+    private static PixelLayout bytesLayout(FileChannel channel, int width, int height) throws IOException
+    {
+        if(width == 0)
+        {
+            // the dimension is the square-root of the number of pixels
+            width = height = (int)Math.round(Math.sqrt(channel.size()));
+            if((long)width*height != channel.size())
+                throw new IOException("Raw image of " + channel.size() + " pixels is not square, give its size.");
+        }
+        else if(channel.size() != (long)width*height)
+            throw new IOException("Raw image has " + channel.size() + " pixels, not " + width + "x" + height + ".");
+        return new PixelLayout(0, width, height);
+    }
+
+    /**
+     * Build a tree around the one byte per pixel image data in a file. The data is mapped into memory a chunk of
+     * rows at a time, so images bigger than a single mapping can hold are still fine.
+     *
+     * @param channel the open file
+     * @param layout where in the file the pixels are
+     *
+     * @return The QTree instance created from the raw data.
+     *
+     * @throws IOException if there are issues working with the file, or it is too short
+     */
+    private static QTree bytesFromChannel(FileChannel channel, PixelLayout layout) throws IOException
+    {
+        long offset = layout.offset;
+        int width = layout.width;
+        int height = layout.height;
+        if(channel.size() - offset < (long)width*height)
+            throw new IOException("Image ended early.");
+
+        // initially makes an empty QTree
+        QTree tree = new QTree();
+        tree.setDimensions(width, height);
+        tree.rawImage = new int[height][width];
+
+        // maps in as many whole rows as fit in a chunk at a time
+        int rowsPerChunk = Math.max(1, MAP_CHUNK_SIZE / Math.max(1, width));
+        for(int row = 0; row < height; row += rowsPerChunk)
+        {
+            int rows = Math.min(rowsPerChunk, height - row);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long)row*width,
+                    (long)rows*width);
+            for(int chunkRow = row; chunkRow < row + rows; ++chunkRow)
+            {
+                int [] line = tree.rawImage[chunkRow];
+                for(int col = 0; col < width; ++col)
+                    line[col] = chunk.get() & 0xFF;
+            }
+        }
+
+        return tree;
+    }
+
+    /**
+     * Get the next token out of a PGM header, skipping any whitespace and comments before it, along with the single
+     * whitespace character after it.
+     *
+     * @param header the header being read
+     *
+     * @return The next token.
+     *
+     * @throws IOException If the header runs out first.
+     */
+    private static String pgmToken(ByteBuffer header) throws IOException
+    {
+        StringBuilder token = new StringBuilder();
+        while(header.hasRemaining())
+        {
+            char c = (char)header.get();
+            // comments run to the end of the line
+            if(c == '#' && token.length() == 0)
+                while(header.hasRemaining() && c != '\n')
+                    c = (char)header.get();
+            else if(!Character.isWhitespace(c))
+                token.append(c);
+            else if(token.length() > 0)
+                return token.toString();
+        }
+        throw new IOException("Bad PGM header.");
+    }
+
+    /**
+     * Get the next number out of a PGM header.
+     *
+     * @param header the header being read
+     *
+     * @return The next number.
+     *
+     * @throws IOException If the header runs out first, or the next token is not a number.
+     */
+    private static int pgmNumber(ByteBuffer header) throws IOException
+    {
+        String token = pgmToken(header);
+        try
+        {
+            return Integer.parseInt(token);
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IOException("Bad PGM header value: " + token);
+        }
+    }
+
+    /**
+     * Write the raw image out as a binary PGM (P5) image.
+     *
+     * @param outFile The name of the file to write the image to.
+     *
+     * @throws IOException Any errors involved with writing the file out.
+     * @throws FourZipException If the raw image does not exist (yet).
+     */
+    public void writePgm(String outFile) throws IOException, FourZipException
+    {
+        writeBytes(outFile, "P5\n" + this.width + " " + this.height + "\n255\n");
+    }
+
+    /**
+     * Write the raw image out as headerless raw bytes, one per pixel.
+     *
+     * @param outFile The name of the file to write the image to.
+     *
+     * @throws IOException Any errors involved with writing the file out.
+     * @throws FourZipException If the raw image does not exist (yet).
+     */
+    public void writeBytes(String outFile) throws IOException, FourZipException
+    {
+        writeBytes(outFile, "");
+    }
+
+    /**
+     * Write the raw image out as a header followed by one byte per pixel. The pixels are put straight into the file
+     * mapped into memory, a chunk of rows at a time.
+     *
+     * @param outFile The name of the file to write the image to.
+     * @param header The header to start the file with.
+     *
+     * @throws IOException Any errors involved with writing the file out.
+     * @throws FourZipException If the raw image does not exist (yet).
+     */
+    private void writeBytes(String outFile, String header) throws IOException, FourZipException
+    {
+        // check if we have a raw image to write
+        if(this.rawImage == null)
+            throw new FourZipException("No raw image yet.");
+
+        try(FileChannel channel = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // first writes the header
+            ByteBuffer headerBytes = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            while(headerBytes.hasRemaining())
+                channel.write(headerBytes);
+
+            // then maps in as many whole rows as fit in a chunk at a time and fills them in
+            long offset = headerBytes.capacity();
+            int rowsPerChunk = Math.max(1, MAP_CHUNK_SIZE / Math.max(1, this.width));
+            for(int row = 0; row < this.height; row += rowsPerChunk)
+            {
+                int rows = Math.min(rowsPerChunk, this.height - row);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, offset + (long)row*this.width,
+                        (long)rows*this.width);
+                for(int chunkRow = row; chunkRow < row + rows; ++chunkRow)
+                    for(int pixel : this.rawImage[chunkRow])
+                        chunk.put((byte)pixel);
+            }
+        }
+    }
+
+    /**
+     * Compress a raw image without ever holding all of it, or all of its tree, in memory. The image may be in any
+     * format imageFromFile reads. A binary image's tiles are read straight out of it. ASCII text is streamed once to
+     * count its pixels, and a second time a row of tiles at a time, each row of tiles being spooled to a temporary
+     * file of one byte per pixel on local disk. Each tile of tileDim x tileDim pixels is loaded, compressed and
+     * written out to a temporary fragment file (in the same preorder as the compressed file) by one of the workers,
+     * which keeps nothing but the tile's value: its greyscale value if it is uniform, or QUAD_SPLIT if it isn't. The
+     * upper levels of the tree are then stitched together from those values, merging uniform neighbours, and writing
+     * the tree out streams the fragments into place, so the result is identical to compressing the whole image at
+     * once. At most workers tiles are held in memory at any one time. The fragments stay on disk until deleteTiles
+     * is called, once the tree has been written out (and printed, if it is to be).
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param tileDim the side dimension of a tile, a power of 2 (at least MAX_RAW_BLOCK_DIM, at most the image
+     *                dimension)
+     * @param workers the number of tiles which may be compressed at the same time
+     *
+     * @return The QTree instance holding the compressed image (but no raw image).
+     *
+     * @throws IOException if there are issues working with the file, the temporary files, or the workers, or the
+     *                     image is not square
+     */
+    public static QTree tiledFromFile(String inputFile, int tileDim, int workers) throws IOException
+    {
+        return readTiled(inputFile, 0, 0, tileDim, workers);
+    }
+
+    /**
+     * Compress a raw image of a given size a tile at a time, just like for a square image.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param tileDim the side dimension of a tile, a power of 2
+     * @param workers the number of tiles which may be compressed at the same time
+     *
+     * @return The QTree instance holding the compressed image (but no raw image).
+     *
+     * @throws IOException if there are issues working with the files or the workers, or the image isn't width x
+     *                     height pixels
+     */
+    public static QTree tiledFromFile(String inputFile, int width, int height, int tileDim, int workers)
+            throws IOException
+    {
+        if(width < 1 || height < 1)
+            throw new IOException("Image size must be positive: " + width + "x" + height);
+        return readTiled(inputFile, width, height, tileDim, workers);
+    }
+
+    /**
+     * Compress a raw image a tile at a time into a new tree.
+     *
+     * @param inputFile the name of the file representing the raw image
+     * @param width the width of the image, or 0 if it is square and its size is to be worked out from the file
+     * @param height the height of the image, or 0 if it is square and its size is to be worked out from the file
+     * @param tileDim the side dimension of a tile, a power of 2
+     * @param workers the number of tiles which may be compressed at the same time
+     *
+     * @return The QTree instance holding the compressed image (but no raw image).
+     *
+     * @throws IOException if there are issues working with the files or the workers, or the image is the wrong size
+     */
+    private static QTree readTiled(String inputFile, int width, int height, int tileDim, int workers)
+            throws IOException
+    {
+        // tiles have to line up with quadrant boundaries
+        if(tileDim < 1 || Integer.bitCount(tileDim) != 1)
+            throw new IOException("Tile dimension must be a power of 2: " + tileDim);
+
+        // initially makes an empty QTree
+        QTree tree = new QTree();
+
+
+        /* < setting a few fields > */
+        // a binary image says where its pixels are, but a text one's have to be counted first
+        PixelLayout layout = pixelLayout(inputFile, width, height);
+        long pixels = 0;
+        if(layout == null)
+            try(BufferedReader file = new BufferedReader(new FileReader(inputFile)))
+            {
+                while(readPixel(file) != -1)
+                    ++pixels;
+            }
+            catch(IOException e)
+            {
+                // it started off looking like text, but may not have been
+                layout = bytesFallback(inputFile, width, height, e);
+            }
+        // sets the dimensions of the image, from the number of pixels if it's square text
+        if(layout != null)
+        {
+            width = layout.width;
+            height = layout.height;
+        }
+        else if(width == 0)
+        {
+            width = height = (int)Math.round(Math.sqrt(pixels));
+            if((long)width*height != pixels)
+                throw new IOException("Raw image of " + pixels + " pixels is not square, give its size.");
+        }
+        else if((long)width*height != pixels)
+            throw new IOException("Raw image has " + pixels + " pixels, not " + width + "x" + height + ".");
+        tree.setDimensions(width, height);
+        // a tile can't be bigger than the tree itself, and is never smaller than the biggest raw block so raw blocks
+        // come out the same as when compressing the whole image at once
+        tree.tileDim = Math.min(Math.max(tileDim, MAX_RAW_BLOCK_DIM), tree.dim);
+        int tileLevel = Integer.numberOfTrailingZeros(tree.tileDim);
+        tree.tileValues = new int[Integer.numberOfTrailingZeros(tree.dim) + 1][];
+        tree.tileValues[tileLevel] = new int[tree.blocksAcross(tileLevel)*tree.blocksDown(tileLevel)];
+
+
+        /* < spooling and compressing the tiles > */
+        tree.tileDir = Files.createTempDirectory("4zip-tiles");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        // the tiles handed to the workers but not yet finished, only a couple per worker so they never fall far behind
+        Deque<Future<Void>> pending = new ArrayDeque<>();
+        try(BufferedReader file = (layout == null) ? new BufferedReader(new FileReader(inputFile)) : null)
+        {
+            for(int tileRow = 0; tileRow < tree.blocksDown(tileLevel); ++tileRow)
+            {
+                Path source;
+                long offset;
+                AtomicInteger unfinished;
+                if(layout != null)
+                {
+                    // a binary image's tiles are read straight out of it, it's already one byte per pixel
+                    source = Paths.get(inputFile);
+                    offset = layout.offset + (long)tileRow*tree.tileDim*tree.width;
+                    unfinished = null;
+                }
+                else
+                {
+                    // the whole row of tiles goes in one spool file, which may be cut short by the bottom of the image
+                    int tileHeight = tree.rowsIn(tileRow*tree.tileDim, tree.tileDim);
+                    source = Files.createTempFile(tree.tileDir, "band", ".raw");
+                    try(OutputStream spool = new BufferedOutputStream(Files.newOutputStream(source)))
+                    {
+                        for(long pixel = 0; pixel < (long)tileHeight*tree.width; ++pixel)
+                        {
+                            int value = readPixel(file);
+                            if(value == -1)
+                                throw new IOException("Raw image ended early.");
+                            spool.write(value);
+                        }
+                    }
+                    offset = 0;
+                    // the last tile to finish deletes the spool file
+                    unfinished = new AtomicInteger(tree.blocksAcross(tileLevel));
+                }
+
+                // hands the tiles to the workers
+                for(int tileCol = 0; tileCol < tree.blocksAcross(tileLevel); ++tileCol)
+                {
+                    if(pending.size() >= 2*Math.max(1, workers))
+                        pending.remove().get();
+                    pending.add(pool.submit(tree.compressTile(source, offset + (long)tileCol*tree.tileDim, tree.width,
+                            tileRow, tileCol, unfinished)));
+                }
+            }
+            while(!pending.isEmpty())
+                pending.remove().get();
+
+
+            /* < stitching the tiles together > */
+            tree.stitch(tileLevel);
+        }
+        catch(ExecutionException e)
+        {
+            IOException failure = new IOException("Could not compress tile: " + e.getCause().getMessage(),
+                    e.getCause());
+            tree.abandonTiles(pool, failure);
+            throw failure;
+        }
+        catch(InterruptedException e)
+        {
+            IOException failure = new IOException("Interrupted while compressing tiles.", e);
+            tree.abandonTiles(pool, failure);
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            tree.abandonTiles(pool, e);
+            throw e;
+        }
+        finally
+        {
+            // stops the workers
+            pool.shutdownNow();
+        }
 
         // returns the final constructed tree
         return tree;
     }
 
     /**
-     * A preorder (parent, left, right) traversal of a node. It returns a string which is empty if the node is null.
-     * Otherwise it returns a string that concatenates the current node's value with the values of the 4 sub-regions
-     * (with spaces between).
+     * Make an empty tree for one tile of this tree. A tile cut short by the edges of the image still covers a whole
+     * tile of the tree.
+     *
+     * @param tileRow the row of the tile among the tiles
+     * @param tileCol the column of the tile among the tiles
+     *
+     * @return The empty tree for the tile.
+     */
+    private QTree tile(int tileRow, int tileCol)
+    {
+        QTree tile = new QTree();
+        tile.setDimensions(colsIn(tileCol*this.tileDim, this.tileDim), rowsIn(tileRow*this.tileDim, this.tileDim));
+        tile.dim = this.tileDim;
+        return tile;
+    }
+
+    /**
+     * Get the fragment file holding a composite tile's compressed subtree.
+     *
+     * @param tileRow the row of the tile among the tiles
+     * @param tileCol the column of the tile among the tiles
+     *
+     * @return The path of the fragment file.
+     */
+    private Path fragment(int tileRow, int tileCol)
+    {
+        return this.tileDir.resolve("tile" + tileRow + "_" + tileCol + ".4zip");
+    }
+
+    /**
+     * Make the job which loads a spooled tile, compresses it, and keeps just its value. A composite tile's subtree is
+     * written out to its fragment file first. The tile's pixels are read a row at a time out of a file holding a
+     * whole row of tiles, which is deleted once every tile in it is done.
+     *
+     * @param source the file holding the tile, one byte per pixel
+     * @param offset where in the file the tile's first pixel is
+     * @param stride the number of bytes from the start of one row of the tile to the next
+     * @param tileRow the row of the tile among the tiles
+     * @param tileCol the column of the tile among the tiles
+     * @param unfinished the number of tiles in the file still to be done, or null if the file is to be kept (it is
+     *                   the input image)
+     *
+     * @return The job compressing the tile.
+     */
+    private Callable<Void> compressTile(Path source, long offset, int stride, int tileRow, int tileCol,
+                                        AtomicInteger unfinished)
+    {
+        return () ->
+        {
+            QTree tile = tile(tileRow, tileCol);
+            try
+            {
+                // reads in the tile a row at a time
+                tile.rawImage = new int[tile.height][tile.width];
+                try(FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+                {
+                    ByteBuffer line = ByteBuffer.allocate(tile.width);
+                    for(int row = 0; row < tile.height; ++row)
+                    {
+                        line.clear();
+                        while(line.hasRemaining())
+                            if(channel.read(line, offset + (long)row*stride + line.position()) == -1)
+                                throw new IOException("Image ended early.");
+                        for(int col = 0; col < tile.width; ++col)
+                            tile.rawImage[row][col] = line.get(col) & 0xFF;
+                    }
+                }
+            }
+            finally
+            {
+                if(unfinished != null && unfinished.decrementAndGet() == 0)
+                    Files.deleteIfExists(source);
+            }
+
+            // only the tile's value is kept, after its subtree is written out if it has one
+            tile.compress();
+            if(tile.extendedNodes)
+                this.extendedNodes = true;
+            if(isComposite(tile.root))
+                try(BufferedWriter writer = Files.newBufferedWriter(fragment(tileRow, tileCol),
+                        StandardCharsets.US_ASCII))
+                {
+                    tile.writeCompressed(tile.root, null, writer);
+                }
+            int tileLevel = Integer.numberOfTrailingZeros(this.tileDim);
+            this.tileValues[tileLevel][tileRow*blocksAcross(tileLevel) + tileCol] =
+                    isComposite(tile.root) ? QUAD_SPLIT : tile.root.getValue();
+            return null;
+        };
+    }
+
+    /**
+     * Build the values of the upper levels of the tree over the tiles, one level at a time up to the whole image.
+     * Just like with compressing, if all four sub-regions inside the image have the same single value they are merged
+     * into that value, otherwise the region is QUAD_SPLIT.
+     *
+     * @param tileLevel the level of the tiles, a tile at level n being 2^n x 2^n pixels
+     */
+    private void stitch(int tileLevel)
+    {
+        for(int level = tileLevel + 1; level < this.tileValues.length; ++level)
+        {
+            int across = blocksAcross(level);
+            this.tileValues[level] = new int[across*blocksDown(level)];
+            for(int row = 0; row < blocksDown(level); ++row)
+                for(int col = 0; col < across; ++col)
+                {
+                    // the upper left quadrant is always inside the image, or the region wouldn't be
+                    int ref = tileValue(level - 1, 2*row, 2*col);
+                    boolean uniform = ref != QUAD_SPLIT;
+                    for(Quadrant quadrant : Quadrant.values())
+                    {
+                        int subRow = 2*row + quadrant.rowDelta(1);
+                        int subCol = 2*col + quadrant.colDelta(1);
+                        if(subRow < blocksDown(level - 1) && subCol < blocksAcross(level - 1))
+                            uniform &= tileValue(level - 1, subRow, subCol) == ref;
+                    }
+                    this.tileValues[level][row*across + col] = uniform ? ref : QUAD_SPLIT;
+                }
+        }
+    }
+
+    /**
+     * Get the value of a tile, or of a block of tiles: its greyscale value if it is uniform, or QUAD_SPLIT if not.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     *
+     * @return The value of the block.
+     */
+    private int tileValue(int level, int row, int col)
+    {
+        return this.tileValues[level][row*blocksAcross(level) + col];
+    }
+
+    /**
+     * Write out a tile, or block of tiles, of a tree compressed a tile at a time. Uniform blocks are written as their
+     * value, composite tiles are copied straight out of their fragment files, and any other block is split into its
+     * quadrants, skipping those outside the image.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     * @param writer the writer to write the block out to
+     *
+     * @throws IOException If there are issues with the writer, or a fragment file.
+     */
+    private void writeTiles(int level, int row, int col, BufferedWriter writer) throws IOException
+    {
+        // regions outside the image aren't written
+        if(row >= blocksDown(level) || col >= blocksAcross(level))
+            return;
+
+        // a composite tile is copied straight out of its fragment, counting its values as it goes
+        int value = tileValue(level, row, col);
+        if(value == QUAD_SPLIT && level == Integer.numberOfTrailingZeros(this.tileDim))
+        {
+            try(Reader fragment = Files.newBufferedReader(fragment(row, col), StandardCharsets.US_ASCII))
+            {
+                char [] buffer = new char[WRITE_BUFFER_SIZE];
+                for(int length = fragment.read(buffer); length != -1; length = fragment.read(buffer))
+                {
+                    writer.write(buffer, 0, length);
+                    for(int i = 0; i < length; ++i)
+                        if(buffer[i] == '\n')
+                            ++compressedSize;
+                }
+            }
+            return;
+        }
+
+        ++compressedSize;
+        appendValue(value, writer);
+        writer.write('\n');
+
+        // if this block is split, writes each of its quadrants
+        if(value == QUAD_SPLIT)
+            for(Quadrant quadrant : Quadrant.values())
+                writeTiles(level - 1, 2*row + quadrant.rowDelta(1), 2*col + quadrant.colDelta(1), writer);
+    }
+
+    /**
+     * Append the preorder traversal of a tile, or block of tiles, of a tree compressed a tile at a time, just as
+     * preorder does for a node. Composite tiles are read back in from their fragment files one at a time.
+     *
+     * @param level the level of the block, a block at level n being 2^n x 2^n pixels
+     * @param row the row of the block among the blocks of that level
+     * @param col the column of the block among the blocks of that level
+     * @param out the output to append the block to.
+     *
+     * @throws IOException If there are issues with the output, or a fragment file.
+     */
+    private void appendTiles(int level, int row, int col, Appendable out) throws IOException
+    {
+        int value = tileValue(level, row, col);
+        if(value != QUAD_SPLIT)
+        {
+            appendValue(value, out);
+            return;
+        }
+        if(level == Integer.numberOfTrailingZeros(this.tileDim))
+        {
+            QTree tile = tile(row, col);
+            try(BufferedReader fragment = Files.newBufferedReader(fragment(row, col), StandardCharsets.US_ASCII))
+            {
+                tile.preorder(tile.parse(fragment, null, Coordinate.ORIGIN, tile.dim), out);
+            }
+            return;
+        }
+        out.append('(');
+        for(Quadrant quadrant : Quadrant.values())
+        {
+            // quadrants outside the image are left out altogether
+            int subRow = 2*row + quadrant.rowDelta(1);
+            int subCol = 2*col + quadrant.colDelta(1);
+            if(subRow >= blocksDown(level - 1) || subCol >= blocksAcross(level - 1))
+                continue;
+            out.append(' ');
+            appendTiles(level - 1, subRow, subCol, out);
+        }
+        out.append(" )");
+    }
+
+    /**
+     * Delete the fragment files of a tree compressed a tile at a time, which is done with once it has been written
+     * out. The tree can't be written out or printed after this. It does nothing for any other tree.
+     *
+     * @throws IOException If there are issues deleting the files.
+     */
+    public void deleteTiles() throws IOException
+    {
+        if(this.tileDir == null)
+            return;
+        deleteTileDir(this.tileDir);
+        this.tileDir = null;
+        this.tileValues = null;
+    }
+
+    /**
+     * Give up on compressing a tile at a time after something went wrong. The workers are stopped and waited for
+     * first, so that none of them is still writing to the temporary directory while it is deleted, and anything that
+     * goes wrong cleaning up is added to the original failure rather than hiding it.
+     *
+     * @param pool the workers
+     * @param failure what went wrong
+     */
+    private void abandonTiles(ExecutorService pool, Exception failure)
+    {
+        pool.shutdownNow();
+        try
+        {
+            if(!pool.awaitTermination(1, TimeUnit.MINUTES))
+                failure.addSuppressed(new IOException("Tile workers did not stop."));
+            deleteTiles();
+        }
+        catch(InterruptedException | IOException e)
+        {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Delete the temporary directory of a tree compressed a tile at a time, along with whatever is left in it.
+     *
+     * @param tileDir the temporary directory
+     *
+     * @throws IOException If there are issues deleting the files.
+     */
+    private static void deleteTileDir(Path tileDir) throws IOException
+    {
+        try(DirectoryStream<Path> leftovers = Files.newDirectoryStream(tileDir))
+        {
+            for(Path leftover : leftovers)
+                Files.deleteIfExists(leftover);
+        }
+        Files.deleteIfExists(tileDir);
+    }
+
+    /**
+     * Read the next greyscale value out of a raw image file, skipping any whitespace around it.
+     *
+     * @param file the raw image file being read
+     *
+     * @return The next value, or -1 if the end of the file has been reached.
+     *
+     * @throws IOException If there are issues with the file, or the next value is not a greyscale value (0-255).
+     */
+    private static int readPixel(BufferedReader file) throws IOException
+    {
+        // skips the whitespace before the value
+        int c = file.read();
+        while(c != -1 && isTextSpace(c))
+            c = file.read();
+        if(c == -1)
+            return -1;
+
+        // builds up the value one digit at a time
+        int value = 0;
+        for(; c != -1 && !isTextSpace(c); c = file.read())
+        {
+            if(c < '0' || c > '9' || (value = value*10 + (c - '0')) > 255)
+                throw new IOException("Bad greyscale value in raw image.");
+        }
+        return value;
+    }
+
+    /**
+     * Check whether a character is whitespace that can separate the values of an ASCII text raw image. Unlike
+     * Character.isWhitespace, the control characters which turn up in binary images but never in text aren't.
+     *
+     * @param c the character
+     *
+     * @return Whether it is a space, tab or line break.
+     */
+    private static boolean isTextSpace(int c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * A preorder (parent, left, right) traversal of a node. It appends nothing if the node is null (outside the
+     * image). Otherwise it
+     * appends the current node's value, or the values of the 4 sub-regions (with spaces between). Everything is
+     * appended straight to the output, so the traversal takes time linear in the size of the tree.
      *
      * @param node the node being traversed on.
+     * @param out the output to append the node to.
      *
-     * @return The string of the node.
+     * @throws IOException If there are issues with the output.
      */
-    private String preorder(FourZipNode node)
+    private void preorder(FourZipNode node, Appendable out) throws IOException
     {
-        // if node is null, return an empty string
+        // if node is null, there's nothing to append
         if(node == null)
-            return "";
-        // return a preorder traversal of the node (parent, left, right)
-        return (node.getValue() != -1) ? Integer.toString(node.getValue()) :
-                "( " + preorder(node.getChild(Quadrant.UL)) + " " + preorder(node.getChild(Quadrant.UR)) + " " +
-                        preorder(node.getChild(Quadrant.LL)) + " " + preorder(node.getChild(Quadrant.LR)) + " )";
+            return;
+        // appends a preorder traversal of the node (parent, left, right)
+        if(node.getValue() == RAW_BLOCK)
+        {
+            // a raw block's pixels are shown in square brackets
+            out.append('[');
+            for(int pixel : node.getPixels())
+            {
+                out.append(' ');
+                appendValue(pixel, out);
+            }
+            out.append(" ]");
+            return;
+        }
+        if(node.getValue() != QUAD_SPLIT)
+        {
+            appendValue(node.getValue(), out);
+            return;
+        }
+        out.append('(');
+        for(Quadrant quadrant : Quadrant.values())
+        {
+            // quadrants outside the image are left out altogether
+            if(node.getChild(quadrant) == null)
+                continue;
+            out.append(' ');
+            preorder(node.getChild(quadrant), out);
+        }
+        out.append(" )");
+    }
+
+    /**
+     * Append the same preorder traversal of the tree that toString returns to an output, a piece at a time, so the
+     * whole string never has to be built. Wrap unbuffered outputs (such as System.out) in a buffered writer first.
+     *
+     * @param out the output to append the tree to.
+     *
+     * @throws IOException If there are issues with the output.
+     */
+    public void appendTree(Appendable out) throws IOException
+    {
+        // appends the preorder traversal of the root if the root isn't null
+        if(this.tileValues != null)
+            appendTiles(this.tileValues.length - 1, 0, 0, out);
+        else if(this.root != null)
+            preorder(this.root, out);
+        else
+            out.append("NO TREE");
     }
 
     /**
      * Return a string that represents a preorder traversal of the tree. The node's (greyscale) image value is returned
      * as a decimal string. However when the node's value is QUAD_SPLIT that value is not shown. Instead a left
      * parenthesis is added before the children's to-string methods are called, and a right parenthesis is added
-     * afterwards. Spaces are inserted between all items.
+     * afterwards. A raw block's pixels are shown between square brackets. Spaces are inserted between all items.
      * Example:
-     * ( 1 0 ( 1 2 2 2 ) 0 )
+     * ( 1 0 ( 1 2 2 2 ) [ 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 ] )
      *
      * If the tree has no nodes, "NO TREE" is returned instead.
      *
@@ -432,7 +2102,44 @@ public class QTree
     @Override
     public String toString()
     {
-        // returns the preorder traversal of the root if the root isn't null
-        return (this.root != null) ? preorder(this.root) : "NO TREE";
+        // builds the preorder traversal up in one builder
+        StringBuilder string = new StringBuilder();
+        try
+        {
+            appendTree(string);
+        }
+        catch(IOException e)
+        {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return string.toString();
+    }
+
+    /**
+     * Where the pixels of a binary image are in its file: one byte per pixel, a row at a time, from an offset on.
+     */
+    private static final class PixelLayout
+    {
+        /** Where in the file the pixels start. */
+        private final long offset;
+        /** The width of the image. */
+        private final int width;
+        /** The height of the image. */
+        private final int height;
+
+        /**
+         * Create a layout.
+         *
+         * @param offset where in the file the pixels start
+         * @param width the width of the image
+         * @param height the height of the image
+         */
+        private PixelLayout(long offset, int width, int height)
+        {
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+        }
     }
 }